@@ -0,0 +1,140 @@
+package com.pikycz.plugman.benchmarks;
+
+import com.pikycz.plugman.utils.ClassPrewarmer;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * First use of a plugin's classes right after a reload, with and without
+ * the prewarm stage, plus the cost of the prewarm itself.
+ *
+ * The classes of this benchmark jar stand in for a plugin: every invocation
+ * gets a fresh classloader over the jar, the first use resolves a sample of
+ * the classes the way the first events of a plugin would.
+ *
+ * @author PikyCZ
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ClassPrewarmBenchmark {
+
+    @Param({"org.openjdk.jmh.runner."})
+    public String prefix;
+
+    @Param({"50"})
+    public int sample;
+
+    private File jar;
+
+    private List<String> used;
+
+    private ClassPrewarmer prewarmer;
+
+    private URLClassLoader loader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, URISyntaxException {
+        jar = new File(ClassPrewarmBenchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+
+        List<String> classes = new ArrayList<>();
+        try (JarFile file = new JarFile(jar)) {
+            Enumeration<JarEntry> entries = file.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class") && name.replace('/', '.').startsWith(prefix)) {
+                    classes.add(name.substring(0, name.length() - 6).replace('/', '.'));
+                }
+            }
+        }
+        Collections.shuffle(classes, new Random(42));
+        used = classes.subList(0, Math.min(sample, classes.size()));
+
+        prewarmer = new ClassPrewarmer(Collections.<String>emptyList());
+    }
+
+    /**
+     * A freshly loaded plugin whose classes have been prewarmed, outside
+     * the measured time.
+     */
+    @State(Scope.Thread)
+    public static class Prewarmed {
+
+        private URLClassLoader loader;
+
+        @Setup(Level.Invocation)
+        public void setup(ClassPrewarmBenchmark benchmark) throws IOException {
+            loader = new URLClassLoader(new URL[]{benchmark.jar.toURI().toURL()}, null);
+            benchmark.prewarmer.start(loader, benchmark.jar).step(Long.MAX_VALUE);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            loader.close();
+        }
+
+    }
+
+    @Setup(Level.Invocation)
+    public void newLoader() throws IOException {
+        loader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, null);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeLoader() throws IOException {
+        loader.close();
+    }
+
+    @Benchmark
+    public void firstUseCold(Blackhole bh) throws ClassNotFoundException {
+        use(loader, bh);
+    }
+
+    @Benchmark
+    public void firstUsePrewarmed(Prewarmed prewarmed, Blackhole bh) throws ClassNotFoundException {
+        use(prewarmed.loader, bh);
+    }
+
+    @Benchmark
+    public int prewarm() throws IOException {
+        ClassPrewarmer.Session session = prewarmer.start(loader, jar);
+        session.step(Long.MAX_VALUE);
+        return session.getLoaded();
+    }
+
+    private void use(ClassLoader loader, Blackhole bh) throws ClassNotFoundException {
+        for (String name : used) {
+            Class<?> clazz = Class.forName(name, false, loader);
+            bh.consume(clazz.getDeclaredMethods());
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.pikycz.plugman.benchmarks;
+
+import cn.nukkit.command.Command;
+import cn.nukkit.command.ConsoleCommandSender;
+import cn.nukkit.command.PluginCommand;
+import cn.nukkit.plugin.Plugin;
+import com.pikycz.plugman.PlugMan;
+import com.pikycz.plugman.utils.PluginUtil;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The /plugman status queries monitoring scripts run in loops: the help,
+ * enabling a plugin that is already enabled, finding the owner of a command
+ * and an unknown subcommand.
+ *
+ * Run with {@code -prof gc} to see the garbage per query; the help and the
+ * unknown subcommand should allocate next to nothing.
+ *
+ * @author PikyCZ
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+
+    private PlugMan plugMan;
+
+    private Command command;
+
+    private final CountingSender sender = new CountingSender();
+
+    private final String[] help = {};
+
+    private final String[] unknown = {"status"};
+
+    private String[] enable;
+
+    private String[] which;
+
+    /**
+     * Console that counts the characters it is sent instead of logging them.
+     */
+    public static class CountingSender extends ConsoleCommandSender {
+
+        private long chars;
+
+        @Override
+        public void sendMessage(String message) {
+            chars += message.length();
+        }
+
+        @Override
+        public boolean hasPermission(String name) {
+            return true;
+        }
+
+        public long getChars() {
+            return chars;
+        }
+
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        StandInServer server = StandInServer.start();
+        List<Plugin> added = server.addPlugins(100, "Synthetic");
+        for (Plugin plugin : added) {
+            PluginUtil.enable(plugin);
+        }
+        plugMan = PlugMan.getInstance();
+        command = new PluginCommand<>("plugman", plugMan);
+
+        Plugin last = added.get(added.size() - 1);
+        enable = new String[]{"ENABLE", last.getName()};
+        which = new String[]{"which", "/" + last.getName().toLowerCase() + "-alias"};
+    }
+
+    @Benchmark
+    public long help() {
+        plugMan.onCommand(sender, command, "plugman", help);
+        return sender.getChars();
+    }
+
+    @Benchmark
+    public long enableEnabled() {
+        plugMan.onCommand(sender, command, "plugman", enable);
+        return sender.getChars();
+    }
+
+    @Benchmark
+    public long which() {
+        plugMan.onCommand(sender, command, "plugman", which);
+        return sender.getChars();
+    }
+
+    @Benchmark
+    public long unknownSubcommand() {
+        plugMan.onCommand(sender, command, "plugman", unknown);
+        return sender.getChars();
+    }
+
+}
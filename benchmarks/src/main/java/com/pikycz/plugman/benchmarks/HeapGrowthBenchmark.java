@@ -0,0 +1,96 @@
+package com.pikycz.plugman.benchmarks;
+
+import cn.nukkit.plugin.Plugin;
+import com.pikycz.plugman.utils.PluginUtil;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads, enables and unloads a plugin over and over, and reports how much
+ * the heap grew over the cycles besides the time they took. Anything
+ * unload forgets to clean up, from listeners and commands to the index
+ * entries, shows up as growth; a clean run stays around zero.
+ *
+ * @author PikyCZ
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HeapGrowthBenchmark {
+
+    @Param({"1000"})
+    public int cycles;
+
+    private StandInServer server;
+
+    /**
+     * Heap growth of the last iteration, reported next to the time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Growth {
+
+        private long before;
+
+        public long heapGrowthBytes;
+
+        public long heapGrowthBytesPerCycle;
+
+        @Setup(Level.Iteration)
+        public void before() {
+            before = usedAfterGc();
+        }
+
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = StandInServer.start();
+    }
+
+    @Benchmark
+    public void loadUnload(Growth growth) throws Exception {
+        for (int i = 0; i < cycles; i++) {
+            Plugin plugin = server.create("Cycled", null);
+            server.register(plugin);
+            PluginUtil.enable(plugin);
+            PluginUtil.unload(Collections.singleton(plugin));
+        }
+        growth.heapGrowthBytes = usedAfterGc() - growth.before;
+        growth.heapGrowthBytesPerCycle = growth.heapGrowthBytes / cycles;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server = null;
+    }
+
+    private static long usedAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        // A few rounds, so classloaders and their classes get unloaded too.
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+}
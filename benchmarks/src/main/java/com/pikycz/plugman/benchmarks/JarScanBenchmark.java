@@ -0,0 +1,117 @@
+package com.pikycz.plugman.benchmarks;
+
+import cn.nukkit.plugin.JavaPluginLoader;
+import cn.nukkit.plugin.PluginDescription;
+import cn.nukkit.plugin.PluginLoader;
+import com.pikycz.plugman.utils.DescriptorIndex;
+import com.pikycz.plugman.utils.JarScanner;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cold scan of a plugins folder of synthetic jars: the plugin loader's
+ * getPluginDescription one jar after another, as a name miss used to do,
+ * against the central directory scanner alone and against a full refresh of
+ * an empty descriptor index, which scans in parallel.
+ *
+ * @author PikyCZ
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JarScanBenchmark {
+
+    @Param({"500"})
+    public int jars;
+
+    @Param({"50"})
+    public int classesPerJar;
+
+    private File dir;
+
+    private File[] files;
+
+    private PluginLoader loader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("plugman-scan").toFile();
+        Random random = new Random(42);
+        byte[] clazz = new byte[4096];
+
+        for (int i = 0; i < jars; i++) {
+            try (JarOutputStream out = new JarOutputStream(new FileOutputStream(new File(dir, "Plugin" + i + ".jar")))) {
+                for (int c = 0; c < classesPerJar; c++) {
+                    random.nextBytes(clazz);
+                    out.putNextEntry(new JarEntry("com/example/plugin" + i + "/Class" + c + ".class"));
+                    out.write(clazz);
+                    out.closeEntry();
+                }
+                out.putNextEntry(new JarEntry("plugin.yml"));
+                out.write(("name: Plugin" + i + "\nversion: 1.0.0\nmain: com.example.plugin" + i + ".Class0\napi: [\"1.0.0\"]\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+
+        files = dir.listFiles((d, name) -> name.endsWith(".jar"));
+        loader = new JavaPluginLoader(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void loaderSequential(Blackhole bh) {
+        for (File f : files) {
+            PluginDescription desc = loader.getPluginDescription(f);
+            bh.consume(desc);
+        }
+    }
+
+    @Benchmark
+    public void scannerSequential(Blackhole bh) throws IOException {
+        for (File f : files) {
+            bh.consume(JarScanner.scan(f));
+        }
+    }
+
+    @Benchmark
+    public DescriptorIndex indexRefreshCold() {
+        File indexFile = new File(dir, "descriptors.dat");
+        indexFile.delete();
+        DescriptorIndex index = new DescriptorIndex(dir, indexFile, loader);
+        index.refresh();
+        return index;
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.pikycz.plugman.benchmarks;
+
+import cn.nukkit.plugin.Plugin;
+import com.pikycz.plugman.utils.PluginUtil;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Enabling and disabling every plugin at once, and unloading them all, which
+ * includes the sweep over the listeners and commands.
+ *
+ * These are the whole bulk operation in one call, as PluginUtil does it;
+ * spread over ticks by the pipeline, each tick only takes a slice of it.
+ *
+ * @author PikyCZ
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+public class LifecycleBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int plugins;
+
+    private StandInServer server;
+
+    private List<Plugin> added;
+
+    /**
+     * Fresh plugins, enabled, for every unload.
+     */
+    @State(Scope.Thread)
+    public static class Loaded {
+
+        private List<Plugin> plugins;
+
+        @Setup(Level.Invocation)
+        public void setup(LifecycleBenchmark benchmark) throws Exception {
+            plugins = benchmark.server.addPlugins(benchmark.plugins, "Unload");
+            for (Plugin plugin : plugins) {
+                PluginUtil.enable(plugin);
+            }
+        }
+
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = StandInServer.start();
+        added = server.addPlugins(plugins, "Synthetic");
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        // Half of them enabled, so both operations have work to do.
+        for (int i = 0; i < added.size(); i++) {
+            if (i % 2 == 0) {
+                PluginUtil.enable(added.get(i));
+            } else {
+                PluginUtil.disable(added.get(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<String> enableAll() {
+        return PluginUtil.enableAll();
+    }
+
+    @Benchmark
+    public void disableAll() {
+        PluginUtil.disableAll();
+    }
+
+    @Benchmark
+    public void unloadSweep(Loaded loaded) {
+        PluginUtil.unload(loaded.plugins);
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.pikycz.plugman.benchmarks;
+
+import cn.nukkit.event.Event;
+import cn.nukkit.event.EventPriority;
+import cn.nukkit.event.HandlerList;
+import cn.nukkit.event.Listener;
+import cn.nukkit.plugin.PluginBase;
+import cn.nukkit.plugin.PluginDescription;
+import cn.nukkit.plugin.RegisteredListener;
+import com.pikycz.plugman.utils.ListenerProfiler;
+import com.pikycz.plugman.utils.TimedRegisteredListener;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of a listener wrapped by the profiler compared to the bare
+ * listener, with and without allocation tracking.
+ *
+ * @author PikyCZ
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerProfilerBenchmark {
+
+    public static class DummyEvent extends Event {
+
+        private static final HandlerList handlers = new HandlerList();
+
+        public static HandlerList getHandlers() {
+            return handlers;
+        }
+
+        public int value;
+
+    }
+
+    public static class DummyListener implements Listener {
+    }
+
+    public static class DummyPlugin extends PluginBase {
+    }
+
+    /**
+     * Listener calling straight into the handler, without the server's
+     * timings, so only the wrapper's own cost shows up in the difference.
+     */
+    public static class BareListener extends RegisteredListener {
+
+        public BareListener(Listener listener, DummyPlugin plugin) {
+            super(listener, (l, e) -> ((DummyEvent) e).value++, EventPriority.NORMAL, plugin, false, null);
+        }
+
+        @Override
+        public void callEvent(Event event) {
+            ((DummyEvent) event).value++;
+        }
+
+    }
+
+    private final DummyEvent event = new DummyEvent();
+
+    private RegisteredListener bare;
+
+    private RegisteredListener timed;
+
+    private RegisteredListener timedWithAllocations;
+
+    @Setup
+    public void setup() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("name", "Dummy");
+        map.put("version", "1.0");
+        map.put("main", DummyPlugin.class.getName());
+
+        DummyPlugin plugin = new DummyPlugin();
+        plugin.init(null, null, new PluginDescription(map), new File("."), new File("."));
+
+        ListenerProfiler profiler = new ListenerProfiler(null);
+        bare = new BareListener(new DummyListener(), plugin);
+        timed = new TimedRegisteredListener(bare, profiler, false);
+        timedWithAllocations = new TimedRegisteredListener(bare, profiler, true);
+    }
+
+    @Benchmark
+    public int bare() {
+        bare.callEvent(event);
+        return event.value;
+    }
+
+    @Benchmark
+    public int timed() {
+        timed.callEvent(event);
+        return event.value;
+    }
+
+    @Benchmark
+    public int timedWithAllocations() {
+        timedWithAllocations.callEvent(event);
+        return event.value;
+    }
+
+}
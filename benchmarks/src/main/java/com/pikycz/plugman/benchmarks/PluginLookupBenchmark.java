@@ -0,0 +1,73 @@
+package com.pikycz.plugman.benchmarks;
+
+import cn.nukkit.plugin.Plugin;
+import com.pikycz.plugman.utils.PluginUtil;
+import com.pikycz.plugman.utils.StringUtil;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The lookups behind every /plugman command and tab completion: finding a
+ * plugin by name, the owner of a command, listing plugin names and joining
+ * the command arguments.
+ *
+ * @author PikyCZ
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PluginLookupBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int plugins;
+
+    private String name;
+
+    private String command;
+
+    private final String[] args = {"reload", "Some", "Plugin", "With", "Spaces"};
+
+    @Setup
+    public void setup() throws Exception {
+        StandInServer server = StandInServer.start();
+        List<Plugin> added = server.addPlugins(plugins, "Synthetic");
+        // Worst case for a scan: the last plugin, typed in another case.
+        name = added.get(added.size() - 1).getName().toUpperCase();
+        command = added.get(added.size() - 1).getName().toLowerCase() + "-alias";
+    }
+
+    @Benchmark
+    public Plugin getPluginByName() {
+        return PluginUtil.getPluginByName(name);
+    }
+
+    @Benchmark
+    public List<String> findByCommand() {
+        return PluginUtil.findByCommand(command);
+    }
+
+    @Benchmark
+    public List<String> getPluginNames() {
+        return PluginUtil.getPluginNames(false);
+    }
+
+    @Benchmark
+    public String consolidateStrings() {
+        return StringUtil.consolidateStrings(args, 1);
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.pikycz.plugman.benchmarks;
+
+import com.pikycz.plugman.utils.ServerInternals;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares resolving the unload fields through reflection on every call, as
+ * PluginUtil.unload used to, with the handles cached by ServerInternals.
+ *
+ * @author PikyCZ
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerInternalsBenchmark {
+
+    /**
+     * Stand-in with the field layout of the plugin manager.
+     */
+    public static class StandInManager {
+
+        private final Map<String, Object> plugins = new LinkedHashMap<>();
+
+        private final Map<String, Object> lookupNames = new HashMap<>();
+
+        private final Map<Object, Object> listeners = new HashMap<>();
+
+        private final Object commandMap = null;
+
+    }
+
+    /**
+     * Stand-in with the field layout of the command map.
+     */
+    public static class StandInCommandMap {
+
+        private final Map<String, Object> knownCommands = new HashMap<>();
+
+    }
+
+    /**
+     * Stand-in with the field layout of a plugin classloader.
+     */
+    public static class StandInLoader extends URLClassLoader {
+
+        private Object plugin;
+
+        private Object pluginInit;
+
+        public StandInLoader() {
+            super(new URL[0]);
+        }
+
+    }
+
+    /**
+     * Stand-in with the field layout of the plugin loader.
+     */
+    public static class StandInPluginLoader {
+
+        private final Map<String, Object> classLoaders = new HashMap<>();
+
+    }
+
+    private StandInManager manager;
+
+    private StandInCommandMap commandMap;
+
+    private StandInLoader loader;
+
+    private ServerInternals internals;
+
+    @Setup
+    public void setup() {
+        manager = new StandInManager();
+        commandMap = new StandInCommandMap();
+        loader = new StandInLoader();
+        internals = ServerInternals.resolve(StandInManager.class, StandInCommandMap.class, StandInLoader.class, StandInPluginLoader.class);
+    }
+
+    @Benchmark
+    public void reflectionPerCall(Blackhole bh) throws Exception {
+        bh.consume(field(manager.getClass(), "plugins").get(manager));
+        bh.consume(field(manager.getClass(), "lookupNames").get(manager));
+        bh.consume(field(manager.getClass(), "listeners").get(manager));
+        bh.consume(field(manager.getClass(), "commandMap").get(manager));
+        bh.consume(field(commandMap.getClass(), "knownCommands").get(commandMap));
+        field(loader.getClass(), "plugin").set(loader, null);
+        field(loader.getClass(), "pluginInit").set(loader, null);
+    }
+
+    @Benchmark
+    public void cachedHandles(Blackhole bh) {
+        bh.consume(internals.getPlugins(manager));
+        bh.consume(internals.getLookupNames(manager));
+        bh.consume(internals.getListeners(manager));
+        bh.consume(internals.getCommandMap(manager));
+        bh.consume(internals.getKnownCommands(commandMap));
+        internals.clearLoaderPlugin(loader);
+    }
+
+    private static Field field(Class<?> owner, String name) throws NoSuchFieldException {
+        Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.pikycz.plugman.benchmarks;
+
+import cn.nukkit.Server;
+import cn.nukkit.command.Command;
+import cn.nukkit.command.PluginCommand;
+import cn.nukkit.command.SimpleCommandMap;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.plugin.PluginBase;
+import cn.nukkit.plugin.PluginDescription;
+import cn.nukkit.plugin.PluginLoader;
+import cn.nukkit.plugin.PluginManager;
+import cn.nukkit.scheduler.ServerScheduler;
+import com.pikycz.plugman.PlugMan;
+import com.pikycz.plugman.utils.LeakTracker;
+import com.pikycz.plugman.utils.ServerInternals;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import sun.misc.Unsafe;
+
+/**
+ * A Nukkit server reduced to what PluginUtil touches: the plugin manager,
+ * the command map and the scheduler, installed as Server.getInstance(), plus
+ * a PlugMan instance installed as PlugMan.getInstance() without running
+ * onEnable.
+ *
+ * Synthetic plugins each get their own classloader, declare two commands and
+ * register a listener when enabled. Every tenth plugin starts a chain where
+ * each plugin depends on the one before, so the dependency graph has some
+ * work to do.
+ *
+ * The server itself is allocated without running its constructor, which
+ * would start the whole server, and has its fields filled in by name.
+ *
+ * @author PikyCZ
+ */
+public class StandInServer {
+
+    private static final String SYNTHETIC = "com.pikycz.plugman.benchmarks.synthetic.";
+
+    private final Server server;
+
+    private final PluginManager pluginManager;
+
+    private final SimpleCommandMap commandMap;
+
+    private final StandInPluginLoader loader = new StandInPluginLoader();
+
+    private final PlugMan plugMan;
+
+    private final ServerInternals internals;
+
+    private final URL codeSource = StandInServer.class.getProtectionDomain().getCodeSource().getLocation();
+
+    private final File dataFolder;
+
+    /**
+     * Loads the synthetic classes itself instead of asking its parent, so
+     * every plugin gets its own copy of them.
+     */
+    public static class PluginClassLoader extends URLClassLoader {
+
+        public PluginClassLoader(URL jar, ClassLoader parent) {
+            super(new URL[]{jar}, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(SYNTHETIC)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> clazz = findLoadedClass(name);
+                if (clazz == null) {
+                    clazz = define(name);
+                }
+                if (resolve) {
+                    resolveClass(clazz);
+                }
+                return clazz;
+            }
+        }
+
+        private Class<?> define(String name) throws ClassNotFoundException {
+            // Read through the parent, the code source may be a directory or a jar.
+            try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                if (in == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) > 0; ) {
+                    out.write(buffer, 0, n);
+                }
+                byte[] bytes = out.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+
+    }
+
+    /**
+     * Plugin loader that enables and disables without events or logging.
+     */
+    public static class StandInPluginLoader implements PluginLoader {
+
+        private final Map<String, Object> classLoaders = new HashMap<>();
+
+        @Override
+        public Plugin loadPlugin(String filename) {
+            return null;
+        }
+
+        @Override
+        public Plugin loadPlugin(File file) {
+            return null;
+        }
+
+        @Override
+        public PluginDescription getPluginDescription(String filename) {
+            return null;
+        }
+
+        @Override
+        public PluginDescription getPluginDescription(File file) {
+            return null;
+        }
+
+        @Override
+        public Pattern[] getPluginFilters() {
+            return new Pattern[0];
+        }
+
+        @Override
+        public void enablePlugin(Plugin plugin) {
+            ((PluginBase) plugin).setEnabled(true);
+        }
+
+        @Override
+        public void disablePlugin(Plugin plugin) {
+            ((PluginBase) plugin).setEnabled(false);
+        }
+
+    }
+
+    private StandInServer() throws Exception {
+        server = (Server) unsafe().allocateInstance(Server.class);
+        setStatic(Server.class, "instance", server);
+
+        dataFolder = new File(System.getProperty("java.io.tmpdir"), "plugman-benchmarks");
+
+        commandMap = new SimpleCommandMap(server);
+        pluginManager = new PluginManager(server, commandMap);
+        set(server, "commandMap", commandMap);
+        set(server, "pluginManager", pluginManager);
+        set(server, "scheduler", new ServerScheduler());
+
+        internals = ServerInternals.resolve(PluginManager.class, SimpleCommandMap.class, PluginClassLoader.class, StandInPluginLoader.class);
+
+        plugMan = new PlugMan();
+        setStatic(PlugMan.class, "instance", plugMan);
+        set(plugMan, "serverInternals", internals);
+        // Never started, so unloaded plugins are not tracked.
+        set(plugMan, "leakTracker", new LeakTracker(null, 0, null, null));
+    }
+
+    /**
+     * Installs a fresh stand-in server, replacing the previous one.
+     *
+     * @return the server
+     * @throws Exception if the server classes don't have the expected layout
+     */
+    public static StandInServer start() throws Exception {
+        return new StandInServer();
+    }
+
+    public PluginManager getPluginManager() {
+        return pluginManager;
+    }
+
+    public SimpleCommandMap getCommandMap() {
+        return commandMap;
+    }
+
+    /**
+     * Creates a synthetic plugin in its own classloader without registering
+     * it.
+     *
+     * @param name the plugin name
+     * @param depend the plugin it depends on, or null
+     * @return the plugin
+     * @throws Exception if the plugin class can't be loaded
+     */
+    public Plugin create(String name, String depend) throws Exception {
+        String yaml = "name: " + name + "\n"
+                + "main: " + SYNTHETIC + "SyntheticPlugin\n"
+                + "version: 1.0.0\n"
+                + (depend != null ? "depend: [" + depend + "]\n" : "")
+                + "commands:\n"
+                + "  " + name.toLowerCase() + ":\n"
+                + "    description: Main command of " + name + "\n"
+                + "    aliases: [" + name.toLowerCase() + "-alias]\n"
+                + "  " + name.toLowerCase() + "-admin:\n"
+                + "    description: Admin command of " + name + "\n";
+        PluginDescription description = new PluginDescription(yaml);
+
+        PluginClassLoader classLoader = new PluginClassLoader(codeSource, StandInServer.class.getClassLoader());
+        PluginBase plugin = (PluginBase) classLoader.loadClass(SYNTHETIC + "SyntheticPlugin").newInstance();
+        plugin.init(loader, server, description, new File(dataFolder, name), new File(dataFolder, name + ".jar"));
+        loader.classLoaders.put(name, classLoader);
+        return plugin;
+    }
+
+    /**
+     * Adds a plugin to the plugin manager and registers its commands, as
+     * loading it would.
+     *
+     * @param plugin the plugin
+     */
+    @SuppressWarnings("unchecked")
+    public void register(Plugin plugin) {
+        ((Map<String, Plugin>) internals.getPlugins(pluginManager)).put(plugin.getName(), plugin);
+        List<Command> commands = new ArrayList<>();
+        for (String command : plugin.getDescription().getCommands().keySet()) {
+            commands.add(new PluginCommand<>(command, plugin));
+        }
+        commandMap.registerAll(plugin.getName(), commands);
+    }
+
+    /**
+     * Creates and registers synthetic plugins, not enabled yet.
+     *
+     * @param count the number of plugins
+     * @param prefix the prefix of their names
+     * @return the plugins
+     * @throws Exception if a plugin class can't be loaded
+     */
+    public List<Plugin> addPlugins(int count, String prefix) throws Exception {
+        List<Plugin> plugins = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Plugin plugin = create(prefix + i, i % 10 != 0 ? prefix + (i - 1) : null);
+            register(plugin);
+            plugins.add(plugin);
+        }
+        return plugins;
+    }
+
+    private static Unsafe unsafe() throws ReflectiveOperationException {
+        Field field = Unsafe.class.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        return (Unsafe) field.get(null);
+    }
+
+    private static void set(Object target, String name, Object value) throws ReflectiveOperationException {
+        for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                // Declared further up.
+            }
+        }
+        throw new NoSuchFieldException(target.getClass().getName() + "." + name);
+    }
+
+    private static void setStatic(Class<?> owner, String name, Object value) throws ReflectiveOperationException {
+        Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.pikycz.plugman.benchmarks.synthetic;
+
+import cn.nukkit.event.EventHandler;
+import cn.nukkit.event.Listener;
+import cn.nukkit.event.player.PlayerCommandPreprocessEvent;
+
+/**
+ * Listener registered by every synthetic plugin, so unload has listeners to
+ * sweep.
+ *
+ * @author PikyCZ
+ */
+public class SyntheticListener implements Listener {
+
+    private int calls;
+
+    @EventHandler
+    public void onCommand(PlayerCommandPreprocessEvent event) {
+        calls++;
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.pikycz.plugman.benchmarks.synthetic;
+
+import cn.nukkit.plugin.PluginBase;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plugin created by the stand-in server. Every instance lives in its own
+ * classloader, like a real plugin, and holds a little state so a leaked
+ * instance shows up in the heap.
+ *
+ * @author PikyCZ
+ */
+public class SyntheticPlugin extends PluginBase {
+
+    private final List<byte[]> state = new ArrayList<>();
+
+    @Override
+    public void onEnable() {
+        state.add(new byte[1024]);
+        getServer().getPluginManager().registerEvents(new SyntheticListener(), this);
+    }
+
+    @Override
+    public void onDisable() {
+        state.clear();
+    }
+
+}
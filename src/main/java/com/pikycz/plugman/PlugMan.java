@@ -4,8 +4,38 @@ import cn.nukkit.command.Command;
 import cn.nukkit.command.CommandSender;
 import cn.nukkit.plugin.Plugin;
 import cn.nukkit.plugin.PluginBase;
+import cn.nukkit.plugin.PluginManager;
+import cn.nukkit.utils.ConfigSection;
 import cn.nukkit.utils.TextFormat;
+import com.pikycz.plugman.utils.ClassPrewarmer;
+import com.pikycz.plugman.utils.CommandDispatcher;
+import com.pikycz.plugman.utils.DescriptorIndex;
+import com.pikycz.plugman.utils.HeapWalker;
+import com.pikycz.plugman.utils.LazyActivator;
+import com.pikycz.plugman.utils.LeakTracker;
+import com.pikycz.plugman.utils.LifecycleTimings;
+import com.pikycz.plugman.utils.ListenerProfiler;
+import com.pikycz.plugman.utils.ManagementServer;
+import com.pikycz.plugman.utils.PluginFootprint;
+import com.pikycz.plugman.utils.PluginIndex;
+import com.pikycz.plugman.utils.PluginPipeline;
+import com.pikycz.plugman.utils.PluginReaper;
 import com.pikycz.plugman.utils.PluginUtil;
+import com.pikycz.plugman.utils.PluginWatchdog;
+import com.pikycz.plugman.utils.PluginWatcher;
+import com.pikycz.plugman.utils.RegistrationIndex;
+import com.pikycz.plugman.utils.ServerInternals;
+import com.pikycz.plugman.utils.StateStore;
+import com.pikycz.plugman.utils.StringUtil;
+import com.pikycz.plugman.utils.TickBudgetExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *
@@ -17,89 +47,787 @@ public class PlugMan extends PluginBase {
 
     private static PlugMan instance;
 
+    private DescriptorIndex descriptorIndex;
+
+    private PluginPipeline pipeline;
+
+    private LeakTracker leakTracker;
+
+    private ServerInternals serverInternals;
+
+    private PluginWatcher watcher;
+
+    private LazyActivator lazyActivator;
+
+    private PluginWatchdog watchdog;
+
+    private TickBudgetExecutor executor;
+
+    private PluginReaper reaper;
+
+    private StateStore stateStore;
+
+    private ManagementServer management;
+
+    private final RegistrationIndex registrationIndex = new RegistrationIndex();
+
+    private final PluginIndex pluginIndex = new PluginIndex();
+
+    private final LifecycleTimings timings = new LifecycleTimings();
+
+    private final ListenerProfiler profiler = new ListenerProfiler(this);
+
+    private final CommandDispatcher dispatcher = createDispatcher();
+
+    // Rendered once, /plugman is run in loops by status checks.
+    private final String noPermissionMessage = PluginPrefix + TextFormat.RED + " You don't have permission to use this command.";
+
+    private final String noPermissionAllMessage = PluginPrefix + " §cYou do not have permission to do this.";
+
+    private final String invalidPluginMessage = PluginPrefix + " §cThat is not a valid plugin.";
+
+    private final String nothingRunningMessage = PluginPrefix + " §cNothing is running.";
+
+    private final String unknownCommandMessage = PluginPrefix + " Unknow command.";
+
+    private final String[] helpMessage = {
+        TextFormat.WHITE + "-- " + PluginPrefix + TextFormat.WHITE + " --",
+        TextFormat.GREEN + "/plugman enable <plugin|all>" + TextFormat.YELLOW + " - Enable Plugin",
+        TextFormat.GREEN + "/plugman disable <plugin|all>" + TextFormat.YELLOW + " - Disable Plugin",
+        TextFormat.GREEN + "/plugman load <plugin>" + TextFormat.YELLOW + " - Load Plugin",
+        TextFormat.GREEN + "/plugman unload <plugin|a,b,c|all>" + TextFormat.YELLOW + " - Unload Plugins",
+        TextFormat.GREEN + "/plugman reload <plugin|a,b,c|all>" + TextFormat.YELLOW + " - Reload Plugins",
+        TextFormat.GREEN + "/plugman cancel [job]" + TextFormat.YELLOW + " - Cancel your running bulk operations",
+        TextFormat.GREEN + "/plugman which <command>" + TextFormat.YELLOW + " - Find the plugin of a command",
+        TextFormat.GREEN + "/plugman timings [plugin|reset|export]" + TextFormat.YELLOW + " - Lifecycle timings",
+        TextFormat.GREEN + "/plugman profile <start [alloc]|stop|plugin>" + TextFormat.YELLOW + " - Profile event listeners",
+        TextFormat.GREEN + "/plugman memory [plugin]" + TextFormat.YELLOW + " - Memory used by plugins",
+        TextFormat.GREEN + "/plugman health" + TextFormat.YELLOW + " - Main thread time and exceptions per plugin"
+    };
+
     public static PlugMan getInstance() {
         return instance;
     }
 
+    public DescriptorIndex getDescriptorIndex() {
+        return descriptorIndex;
+    }
+
+    public PluginPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public LeakTracker getLeakTracker() {
+        return leakTracker;
+    }
+
+    public ServerInternals getServerInternals() {
+        return serverInternals;
+    }
+
+    public TickBudgetExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the remembered plugin states, or null before PlugMan is
+     * enabled
+     */
+    public StateStore getStateStore() {
+        return stateStore;
+    }
+
+    /**
+     * @return the reaper, or null if it is turned off
+     */
+    public PluginReaper getReaper() {
+        return reaper;
+    }
+
+    /**
+     * @return the lazy activator, or null if lazy loading is turned off
+     */
+    public LazyActivator getLazyActivator() {
+        return lazyActivator;
+    }
+
+    /**
+     * @return the watchdog, or null if it is turned off
+     */
+    public PluginWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    public PluginWatcher getWatcher() {
+        return watcher;
+    }
+
+    public PluginIndex getPluginIndex() {
+        return pluginIndex;
+    }
+
+    public LifecycleTimings getTimings() {
+        return timings;
+    }
+
+    public ListenerProfiler getProfiler() {
+        return profiler;
+    }
+
+    public RegistrationIndex getRegistrationIndex() {
+        return registrationIndex;
+    }
+
+    /**
+     * Brings the registration index up to date with the server.
+     *
+     * @param rebuild whether to drop the index and scan everything
+     */
+    public void syncRegistrationIndex(boolean rebuild) {
+        PluginManager pluginManager = getServer().getPluginManager();
+        Map<String, Command> commands = serverInternals.getKnownCommands(getServer().getCommandMap());
+        if (rebuild) {
+            registrationIndex.rebuild(serverInternals.getListeners(pluginManager), commands);
+        } else {
+            registrationIndex.sync(serverInternals.getListeners(pluginManager), commands);
+        }
+    }
+
     @Override
     public void onEnable() {
         instance = this;
+
+        saveDefaultConfig();
+
+        serverInternals = ServerInternals.resolve(getServer().getPluginManager().getClass(), getServer().getCommandMap().getClass(), getClass().getClassLoader().getClass(), getPluginLoader().getClass());
+        if (!serverInternals.getMissing().isEmpty()) {
+            getLogger().notice("Not available on this Nukkit build, the related unload cleanup is skipped: " + String.join(", ", serverInternals.getMissing()));
+        }
+
+        stateStore = new StateStore(new File(getDataFolder(), "state.dat"), getLogger());
+        stateStore.load();
+        if (getConfig().getBoolean("restore-state", true)) {
+            restoreState();
+        }
+
+        descriptorIndex = new DescriptorIndex(new File("plugins"), new File(getDataFolder(), "descriptors.dat"), getPluginLoader());
+        descriptorIndex.load();
+
+        executor = new TickBudgetExecutor(this, PluginPrefix, getConfig().getLong("tick-budget-millis", 10));
+
+        ClassPrewarmer prewarmer = getConfig().getBoolean("prewarm.enabled", false) ? new ClassPrewarmer(getConfig().getStringList("prewarm.initialize")) : null;
+        pipeline = new PluginPipeline(this, PluginPrefix, prewarmer, getConfig().getLong("prewarm.tick-budget-millis", 10), getConfig().getLong("heap-walk-tick-millis", 2));
+
+        syncRegistrationIndex(true);
+        pluginIndex.rebuild(getServer().getPluginManager().getPlugins().values());
+        getServer().getPluginManager().registerEvents(new PluginListener(this), this);
+
+        HeapWalker walker = new HeapWalker(getConfig().getInt("leak-detection.max-objects", 1000000), getConfig().getLong("leak-detection.max-walk-millis", 2000));
+        leakTracker = new LeakTracker(getLogger(), getConfig().getLong("leak-detection.timeout", 60) * 1000, walker, pipeline);
+        if (getConfig().getBoolean("leak-detection.enabled", true)) {
+            leakTracker.start();
+        }
+
+        if (getConfig().getBoolean("reaper.enabled", true)) {
+            HeapWalker reaperWalker = new HeapWalker(getConfig().getInt("reaper.max-objects", 200000), getConfig().getLong("reaper.max-walk-millis", 500));
+            reaper = new PluginReaper(getLogger(), getConfig().getLong("reaper.join-millis", 2000), reaperWalker);
+        }
+
+        if (getConfig().getBoolean("management.enabled", false)) {
+            String token = getConfig().getString("management.token", "");
+            if (token.isEmpty()) {
+                getLogger().warning("The management endpoint needs a token, set management.token in the config.");
+            } else {
+                management = new ManagementServer(pipeline, getLogger(), getConfig().getInt("management.port", 25599), token);
+                try {
+                    management.start();
+                } catch (IOException e) {
+                    getLogger().warning("Could not start the management endpoint: " + e.getMessage());
+                    management = null;
+                }
+            }
+        }
+
+        if (getConfig().getBoolean("lazy.enabled", false)) {
+            lazyActivator = new LazyActivator(this, getLogger(), new File(getConfig().getString("lazy.folder", "plugins/lazy")), getConfig().getLong("lazy.idle-minutes", 0) * 60000);
+            lazyActivator.start(getLazyEvents());
+        }
+
+        if (getConfig().getBoolean("watchdog.enabled", false)) {
+            PluginWatchdog.Action action;
+            try {
+                action = PluginWatchdog.Action.valueOf(getConfig().getString("watchdog.action", "alert").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                getLogger().warning("Unknown watchdog action " + getConfig().getString("watchdog.action", "") + ", only alerting.");
+                action = PluginWatchdog.Action.ALERT;
+            }
+            watchdog = new PluginWatchdog(this, pipeline, getLogger(), PluginPrefix,
+                    getConfig().getLong("watchdog.interval-millis", 10), getConfig().getLong("watchdog.window-seconds", 10) * 1000,
+                    getConfig().getDouble("watchdog.max-tick-millis", 10), getConfig().getInt("watchdog.max-exceptions", 100),
+                    getConfig().getInt("watchdog.windows", 3), action, getConfig().getStringList("watchdog.exempt"));
+            watchdog.start();
+        }
+
+        watcher = new PluginWatcher(pipeline, descriptorIndex, getLogger(), new File("plugins"), getConfig().getLong("watch.settle-millis", 1000));
+        if (getConfig().getBoolean("watch.enabled", false)) {
+            try {
+                watcher.start();
+            } catch (IOException e) {
+                getLogger().warning("Could not watch the plugins folder: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the events that load a lazy plugin, by plugin name
+     */
+    private Map<String, List<String>> getLazyEvents() {
+        Map<String, List<String>> events = new HashMap<>();
+        ConfigSection section = getConfig().getSection("lazy.events");
+        if (section != null) {
+            for (String name : section.getKeys(false)) {
+                events.put(name, section.getStringList(name));
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public void onDisable() {
+        profiler.stop();
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+        if (lazyActivator != null) {
+            lazyActivator.stop();
+        }
+        if (watcher != null) {
+            watcher.stop();
+        }
+        if (management != null) {
+            management.stop();
+        }
+        if (executor != null) {
+            executor.cancelAll();
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        if (leakTracker != null) {
+            leakTracker.stop();
+        }
+        if (reaper != null) {
+            reaper.shutdown();
+        }
+        if (stateStore != null) {
+            stateStore.close();
+        }
+    }
+
+    /**
+     * Keeps the plugins an admin disabled before the restart disabled. PlugMan
+     * loads at STARTUP, so most plugins are loaded but not enabled yet: those
+     * are taken out of the plugin manager until the server has enabled the
+     * rest, and put back disabled on the first tick. Plugins that are already
+     * enabled, or get enabled after PlugMan, are disabled.
+     */
+    @SuppressWarnings("unchecked")
+    private void restoreState() {
+        List<String> disabled = stateStore.getDisabled();
+        if (disabled.isEmpty()) {
+            return;
+        }
+
+        PluginManager pluginManager = getServer().getPluginManager();
+        Object plugins = serverInternals.getPlugins(pluginManager);
+        Map<String, Plugin> detached = new LinkedHashMap<>();
+        for (String name : disabled) {
+            Plugin plugin = pluginManager.getPlugin(name);
+            if (plugin == null || plugin == this) {
+                continue;
+            }
+            if (plugin.isEnabled()) {
+                pluginManager.disablePlugin(plugin);
+            } else if (plugins instanceof Map) {
+                ((Map<String, Plugin>) plugins).remove(plugin.getName());
+                detached.put(plugin.getName(), plugin);
+            }
+        }
+
+        getServer().getScheduler().scheduleTask(this, () -> {
+            if (plugins instanceof Map) {
+                ((Map<String, Plugin>) plugins).putAll(detached);
+            }
+            List<String> kept = new ArrayList<>();
+            for (String name : disabled) {
+                Plugin plugin = pluginManager.getPlugin(name);
+                if (plugin == null || plugin == this) {
+                    continue;
+                }
+                if (plugin.isEnabled()) {
+                    pluginManager.disablePlugin(plugin);
+                }
+                kept.add(plugin.getName());
+            }
+            pluginIndex.rebuild(pluginManager.getPlugins().values());
+            if (!kept.isEmpty()) {
+                getLogger().info("Kept " + kept.size() + " plugins disabled as they were before the restart: " + String.join(", ", kept));
+            }
+        });
+    }
+
+    /**
+     * Registers the /plugman subcommands.
+     */
+    private CommandDispatcher createDispatcher() {
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        dispatcher.register("enable", this::enableCommand);
+        dispatcher.register("disable", this::disableCommand);
+        dispatcher.register("load", this::loadCommand);
+        dispatcher.register("unload", (sender, args) -> unloadOrReloadCommand(sender, args, "unload"));
+        dispatcher.register("reload", (sender, args) -> unloadOrReloadCommand(sender, args, "reload"));
+        dispatcher.register("cancel", this::cancelCommand);
+        dispatcher.register("which", this::whichCommand);
+        dispatcher.register("timings", (sender, args) -> {
+            sendTimings(sender, args.join());
+            return true;
+        });
+        dispatcher.register("profile", this::profileCommand);
+        dispatcher.register("memory", this::memoryCommand);
+        dispatcher.register("health", this::healthCommand);
+        return dispatcher;
     }
 
     @Override
     public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args) {
-        if (cmd.getName().toLowerCase().equals("plugman")) {
+        if (cmd.getName().equalsIgnoreCase("plugman")) {
             if (!sender.hasPermission("plugman.main")) {
-                sender.sendMessage(PluginPrefix + TextFormat.RED + " You don't have permission to use this command.");
+                sender.sendMessage(noPermissionMessage);
                 return false;
             }
 
             if (args.length == 0) {
-                sender.sendMessage(TextFormat.WHITE + "-- " + PluginPrefix + TextFormat.WHITE + " --");
-                sender.sendMessage(TextFormat.GREEN + "/plugman enable <plugin>" + TextFormat.YELLOW + " - Enable Plugin");
-                sender.sendMessage(TextFormat.GREEN + "/plugman disable <plugin>" + TextFormat.YELLOW + " - Disable Plugin");
+                for (String line : helpMessage) {
+                    sender.sendMessage(line);
+                }
+                return true;
+            }
+
+            Boolean handled = dispatcher.dispatch(sender, args);
+            if (handled == null) {
+                sender.sendMessage(unknownCommandMessage);
+                return true;
+            }
+            return handled;
+        }
+        return true;
+    }
+
+    private boolean enableCommand(CommandSender sender, CommandDispatcher.Arguments args) {
+        if (args.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cUsage: /plugman enable <plugin|all>");
+            return true;
+        }
+
+        if (args.is(0, "all") || args.is(0, "*")) {
+            if (sender.hasPermission("plugman.all")) {
+                pipeline.enableAll(sender);
+            } else {
+                sender.sendMessage(noPermissionAllMessage);
+            }
+            return true;
+        }
+
+        Plugin target = PluginUtil.getPluginByName(args.join());
+        if (target == null) {
+            sender.sendMessage(invalidPluginMessage);
+            return true;
+        }
+
+        if (target.isEnabled()) {
+            sender.sendMessage(PluginPrefix + " §c" + target + " is already enabled.");
+            return true;
+        }
+
+        PluginUtil.enable(target);
+
+        sender.sendMessage(PluginPrefix + " §9 " + target + " has been enabled.");
+        return true;
+    }
+
+    private boolean disableCommand(CommandSender sender, CommandDispatcher.Arguments args) {
+        if (args.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cUsage: /plugman disable <plugin|all>");
+            return true;
+        }
+
+        if (args.is(0, "all") || args.is(0, "*")) {
+            if (sender.hasPermission("plugman.all")) {
+                pipeline.disableAll(sender);
             } else {
-                switch (args[0]) {
-
-                    case "enable":
-                        Plugin target = PluginUtil.getPluginByName(args, 1);
-                        if (args[1].equalsIgnoreCase("all") || args[1].equalsIgnoreCase("*")) {
-                            if (sender.hasPermission("plugman.all")) {
-                                PluginUtil.enableAll();
-                                sender.sendMessage(PluginPrefix + " §9All plugins have been enabled");
-                            } else {
-                                sender.sendMessage(PluginPrefix + " §cYou do not have permission to do this.");
-                            }
-                            return false;
-                        }
-
-                        if (target == null) {
-                            sender.sendMessage(PluginPrefix + " §cThat is not a valid plugin.");
-                            return true;
-                        }
-
-                        if (target.isEnabled()) {
-                            sender.sendMessage(PluginPrefix + " §c" + target + " is already enabled.");
-                            return true;
-                        }
-
-                        PluginUtil.enable(target);
-
-                        sender.sendMessage(PluginPrefix + " §9 " + target + " has been enabled.");
-                        break;
-                    case "disable":
-                        Plugin target1 = PluginUtil.getPluginByName(args, 1);
-                        if (args[1].equalsIgnoreCase("all") || args[1].equalsIgnoreCase("*")) {
-                            if (sender.hasPermission("plugman.all")) {
-                                PluginUtil.disableAll();
-                                sender.sendMessage(PluginPrefix + " §9All plugins have been disabled.");
-                            } else {
-                                sender.sendMessage(PluginPrefix + " §cYou do not have permission to do this.");
-                            }
-                            return false;
-                        }
-
-                        if (target1 == null) {
-                            sender.sendMessage(PluginPrefix + " §cThat is not a valid plugin.");
-                            return true;
-                        }
-
-                        if (!target1.isEnabled()) {
-                            sender.sendMessage(PluginPrefix + " §c" + target1 + " is already disabled.");
-                            return true;
-                        }
-
-                        PluginUtil.disable(target1);
-
-                        sender.sendMessage(PluginPrefix + " §9" + target1 + " has been disabled.");
-                        break;
-                    default:
-                        sender.sendMessage(PluginPrefix + " Unknow command.");
-                        break;
+                sender.sendMessage(noPermissionAllMessage);
+            }
+            return true;
+        }
+
+        Plugin target = PluginUtil.getPluginByName(args.join());
+        if (target == null) {
+            sender.sendMessage(invalidPluginMessage);
+            return true;
+        }
+
+        if (!target.isEnabled()) {
+            sender.sendMessage(PluginPrefix + " §c" + target + " is already disabled.");
+            return true;
+        }
+
+        PluginUtil.disable(target);
+
+        sender.sendMessage(PluginPrefix + " §9" + target + " has been disabled.");
+        return true;
+    }
+
+    private boolean loadCommand(CommandSender sender, CommandDispatcher.Arguments args) {
+        if (args.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cUsage: /plugman load <plugin>");
+            return true;
+        }
+
+        String name = args.join();
+
+        if (PluginUtil.getPluginByName(name) != null) {
+            sender.sendMessage(PluginPrefix + " §c" + name + " is already loaded.");
+            return true;
+        }
+
+        pipeline.load(sender, name);
+        return true;
+    }
+
+    private boolean unloadOrReloadCommand(CommandSender sender, CommandDispatcher.Arguments args, String action) {
+        if (args.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cUsage: /plugman " + action + " <plugin>");
+            return true;
+        }
+
+        String arg = args.join();
+        if (arg.equalsIgnoreCase("all") || arg.equals("*") || arg.indexOf(',') >= 0) {
+            List<Plugin> targets = getTargets(sender, arg, action);
+            if (targets == null) {
+                return true;
+            }
+            if (targets.isEmpty()) {
+                sender.sendMessage(PluginPrefix + " §cNo plugins to " + action + ".");
+                return true;
+            }
+
+            if (action.equals("unload")) {
+                pipeline.unload(sender, targets);
+            } else {
+                pipeline.reload(sender, targets);
+            }
+            return true;
+        }
+
+        Plugin target = PluginUtil.getPluginByName(arg);
+
+        if (target == null) {
+            sender.sendMessage(invalidPluginMessage);
+            return true;
+        }
+
+        if (target == this) {
+            sender.sendMessage(PluginPrefix + " §cPlugMan can't " + action + " itself.");
+            return true;
+        }
+
+        if (action.equals("unload")) {
+            pipeline.unload(sender, target);
+        } else {
+            pipeline.reload(sender, target);
+        }
+        return true;
+    }
+
+    private boolean cancelCommand(CommandSender sender, CommandDispatcher.Arguments args) {
+        if (executor.getJobs().isEmpty()) {
+            sender.sendMessage(nothingRunningMessage);
+            return true;
+        }
+
+        if (args.isEmpty()) {
+            if (executor.cancel(sender) == 0) {
+                sender.sendMessage(PluginPrefix + " §cNothing of yours can be cancelled, running:");
+                for (TickBudgetExecutor.Job job : executor.getJobs()) {
+                    sender.sendMessage(TextFormat.GREEN + "#" + job.getId() + " " + job.getName() + TextFormat.YELLOW
+                            + " (" + job.getDone() + "/" + job.getTotal() + (job.isCancellable() ? "" : ", not cancellable") + ")");
                 }
             }
+            return true;
+        }
+
+        TickBudgetExecutor.Job job = null;
+        try {
+            job = executor.getJob(Integer.parseInt(args.get(0).startsWith("#") ? args.get(0).substring(1) : args.get(0)));
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        if (job == null) {
+            sender.sendMessage(PluginPrefix + " §cNo job " + args.get(0) + " is running.");
+        } else if (!executor.cancel(job)) {
+            sender.sendMessage(PluginPrefix + " §c" + job.getName() + " can't be cancelled, stopping it halfway would leave plugins unloaded.");
+        } else if (job.getSender() != sender) {
+            sender.sendMessage(PluginPrefix + " §9Cancelled " + job.getName() + ".");
+        }
+        return true;
+    }
+
+    private boolean whichCommand(CommandSender sender, CommandDispatcher.Arguments args) {
+        if (args.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cUsage: /plugman which <command>");
+            return true;
+        }
+
+        String command = args.get(0).startsWith("/") ? args.get(0).substring(1) : args.get(0);
+        List<String> owners = PluginUtil.findByCommand(command);
+
+        if (!owners.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §9/" + command + " is provided by " + String.join(", ", owners) + ".");
+            return true;
+        }
+
+        List<String> similar = PluginUtil.getPluginIndex().completeCommand(command);
+        if (similar.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cNo plugin declares /" + command + ".");
+        } else {
+            sender.sendMessage(PluginPrefix + " §cNo plugin declares /" + command + ", did you mean: " + String.join(", ", similar.subList(0, Math.min(10, similar.size()))) + "?");
+        }
+        return true;
+    }
+
+    private boolean profileCommand(CommandSender sender, CommandDispatcher.Arguments args) {
+        if (args.is(0, "start")) {
+            if (profiler.isRunning()) {
+                sender.sendMessage(PluginPrefix + " §cThe profiler is already running.");
+                return true;
+            }
+            boolean alloc = args.is(1, "alloc");
+            int wrapped = profiler.start(alloc);
+            sender.sendMessage(PluginPrefix + " §9Profiling " + wrapped + " listeners" + (alloc ? " with allocations" : "") + ".");
+        } else if (args.is(0, "stop")) {
+            if (!profiler.isRunning()) {
+                sender.sendMessage(PluginPrefix + " §cThe profiler is not running.");
+                return true;
+            }
+            long millis = profiler.getRunningMillis();
+            profiler.stop();
+            sender.sendMessage(PluginPrefix + " §9Profiler stopped after " + millis / 1000 + "s.");
+            sendProfile(sender, null);
+        } else {
+            sendProfile(sender, args.join());
+        }
+        return true;
+    }
+
+    private boolean healthCommand(CommandSender sender, CommandDispatcher.Arguments args) {
+        if (watchdog == null) {
+            sender.sendMessage(PluginPrefix + " §cThe watchdog is not enabled.");
+            return true;
+        }
+
+        List<PluginWatchdog.Health> health = watchdog.getHealth();
+        if (health.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cNothing recorded yet.");
+            return true;
+        }
+
+        sender.sendMessage(TextFormat.WHITE + "-- " + PluginPrefix + TextFormat.WHITE + " --");
+        for (PluginWatchdog.Health h : health.subList(0, Math.min(10, health.size()))) {
+            sender.sendMessage(TextFormat.GREEN + h.getPlugin() + TextFormat.YELLOW
+                    + ": " + String.format("%.2f", h.getTickMillis()) + "ms/tick, " + h.getExceptions() + " exceptions"
+                    + (h.getStrikes() > 0 ? ", over budget " + h.getStrikes() + " windows in a row" : ""));
         }
         return true;
     }
 
+    private boolean memoryCommand(CommandSender sender, CommandDispatcher.Arguments args) {
+        if (args.isEmpty()) {
+            sendMemory(sender, null);
+            return true;
+        }
+
+        Plugin measured = PluginUtil.getPluginByName(args.join());
+        if (measured == null) {
+            sender.sendMessage(invalidPluginMessage);
+            return true;
+        }
+        sendMemory(sender, measured);
+        return true;
+    }
+
+    /**
+     * Resolves a comma separated list of plugins, or all plugins except
+     * PlugMan.
+     *
+     * @return the plugins, or null if one of them is invalid
+     */
+    private List<Plugin> getTargets(CommandSender sender, String arg, String action) {
+        List<Plugin> targets = new ArrayList<>();
+
+        if (arg.equalsIgnoreCase("all") || arg.equals("*")) {
+            if (!sender.hasPermission("plugman.all")) {
+                sender.sendMessage(noPermissionAllMessage);
+                return null;
+            }
+            targets.addAll(getServer().getPluginManager().getPlugins().values());
+            targets.remove(this);
+            return targets;
+        }
+
+        for (String part : arg.split(",")) {
+            String name = part.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            Plugin target = PluginUtil.getPluginByName(name);
+            if (target == null) {
+                sender.sendMessage(PluginPrefix + " §c" + name + " is not a valid plugin.");
+                return null;
+            }
+            if (target == this) {
+                sender.sendMessage(PluginPrefix + " §cPlugMan can't " + action + " itself.");
+                return null;
+            }
+            if (!targets.contains(target)) {
+                targets.add(target);
+            }
+        }
+        return targets;
+    }
+
+    private void sendTimings(CommandSender sender, String arg) {
+        if ("reset".equalsIgnoreCase(arg)) {
+            timings.reset();
+            sender.sendMessage(PluginPrefix + " §9Timings have been reset.");
+            return;
+        }
+
+        if ("export".equalsIgnoreCase(arg)) {
+            File json = new File(getDataFolder(), "timings.json");
+            File csv = new File(getDataFolder(), "timings.csv");
+            pipeline.async(() -> {
+                timings.writeJson(json);
+                timings.writeCsv(csv);
+                return null;
+            }).whenComplete((result, error) -> pipeline.sync(() -> {
+                if (error == null) {
+                    sender.sendMessage(PluginPrefix + " §9Timings exported to " + json.getPath() + " and " + csv.getPath() + ".");
+                } else {
+                    sender.sendMessage(PluginPrefix + " §cCould not export timings: " + error.getMessage());
+                }
+                return null;
+            }));
+            return;
+        }
+
+        if (arg != null) {
+            Map<LifecycleTimings.Phase, LifecycleTimings.Stats> stats = timings.getStats(arg);
+            if (stats.isEmpty()) {
+                sender.sendMessage(PluginPrefix + " §cNo timings recorded for " + arg + ".");
+                return;
+            }
+            int generation = stateStore.getGeneration(arg);
+            sender.sendMessage(TextFormat.WHITE + "-- " + PluginPrefix + TextFormat.WHITE + " " + arg + (generation > 0 ? " (generation " + generation + ")" : "") + " --");
+            for (Map.Entry<LifecycleTimings.Phase, LifecycleTimings.Stats> entry : stats.entrySet()) {
+                LifecycleTimings.Stats s = entry.getValue();
+                sender.sendMessage(TextFormat.GREEN + entry.getKey().getLabel() + TextFormat.YELLOW + ": " + s.getCount() + "x"
+                        + ", p50 " + LifecycleTimings.millis(s.getPercentile(50)) + "ms"
+                        + ", p99 " + LifecycleTimings.millis(s.getPercentile(99)) + "ms"
+                        + ", max " + LifecycleTimings.millis(s.getMax()) + "ms"
+                        + ", " + s.getAllocated() / 1024 + "KB allocated");
+            }
+            return;
+        }
+
+        List<String> plugins = timings.getPlugins();
+        if (plugins.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cNo timings recorded yet.");
+            return;
+        }
+
+        sender.sendMessage(TextFormat.WHITE + "-- " + PluginPrefix + TextFormat.WHITE + " --");
+        for (String plugin : plugins) {
+            long total = 0;
+            for (LifecycleTimings.Stats s : timings.getStats(plugin).values()) {
+                total += s.getTotal();
+            }
+            sender.sendMessage(TextFormat.GREEN + plugin + TextFormat.YELLOW + ": " + LifecycleTimings.millis(total) + "ms total");
+        }
+    }
+
+    /**
+     * Measures all plugins, or one plugin including its retained heap, on the
+     * worker thread and reports back on the main thread.
+     */
+    private void sendMemory(CommandSender sender, Plugin plugin) {
+        List<Plugin> plugins = new ArrayList<>();
+        if (plugin != null) {
+            plugins.add(plugin);
+            sender.sendMessage(PluginPrefix + " §7Measuring " + plugin.getName() + "...");
+        } else {
+            plugins.addAll(getServer().getPluginManager().getPlugins().values());
+        }
+
+        HeapWalker walker = new HeapWalker(getConfig().getInt("memory.max-objects", 500000), getConfig().getLong("memory.max-walk-millis", 2000));
+        HeapWalker.Walk<Long> walk = plugin != null ? PluginFootprint.estimateRetained(plugin, walker, getConfig().getInt("memory.sample", 64)) : null;
+        CompletableFuture<Long> retained = walk != null ? pipeline.async(() -> {
+            walk.step(Long.MAX_VALUE);
+            return walk.getResult();
+        }) : CompletableFuture.completedFuture(-1L);
+
+        pipeline.async(() -> PluginFootprint.measureAll(plugins)).thenCombine(retained, (footprints, bytes) -> {
+            return pipeline.sync(() -> {
+                sender.sendMessage(TextFormat.WHITE + "-- " + PluginPrefix + TextFormat.WHITE + (plugin != null ? " " + plugin.getName() : "") + " --");
+                for (PluginFootprint f : footprints.subList(0, Math.min(plugin != null ? 1 : 15, footprints.size()))) {
+                    sender.sendMessage(TextFormat.GREEN + f.getPlugin() + TextFormat.YELLOW
+                            + ": " + f.getClasses() + (f.isExact() ? "" : " (jar)") + " classes"
+                            + ", ~" + f.getMetaspace() / 1024 + "KB metaspace"
+                            + ", " + f.getThreads() + " threads");
+                }
+                if (bytes >= 0) {
+                    sender.sendMessage(TextFormat.GREEN + "Retained heap" + TextFormat.YELLOW
+                            + ": ~" + bytes / 1024 + "KB over " + walk.getVisited() + " objects"
+                            + (walk.getSkipped() > 0 ? ", " + walk.getSkipped() + " skipped as they changed while read" : "")
+                            + (walk.isExhausted() ? " (walk budget used up, at least this much)" : ""));
+                }
+                return null;
+            });
+        }).whenComplete((result, error) -> {
+            if (error != null) {
+                pipeline.sync(() -> {
+                    sender.sendMessage(PluginPrefix + " §cCould not measure memory: " + error.getMessage());
+                    return null;
+                });
+            }
+        });
+    }
+
+    private void sendProfile(CommandSender sender, String plugin) {
+        List<ListenerProfiler.Stats> stats = profiler.getStats(plugin);
+        if (stats.isEmpty()) {
+            sender.sendMessage(PluginPrefix + " §cNo listener calls recorded" + (plugin != null ? " for " + plugin : "") + ".");
+            return;
+        }
+
+        sender.sendMessage(TextFormat.WHITE + "-- " + PluginPrefix + TextFormat.WHITE + " --");
+        for (ListenerProfiler.Stats s : stats.subList(0, Math.min(10, stats.size()))) {
+            String listener = s.getListener().substring(s.getListener().lastIndexOf('.') + 1);
+            sender.sendMessage(TextFormat.GREEN + s.getPlugin() + " " + listener + "@" + s.getEvent() + TextFormat.YELLOW
+                    + ": " + s.getCount() + " calls, " + LifecycleTimings.millis(s.getTotal()) + "ms total"
+                    + ", avg " + s.getTotal() / s.getCount() / 1000 + "us"
+                    + ", p99 " + s.getPercentile(99) / 1000 + "us"
+                    + (s.getAllocatedPerCall() > 0 ? ", " + s.getAllocatedPerCall() + "B/call" : ""));
+        }
+    }
+
 }
@@ -0,0 +1,28 @@
+package com.pikycz.plugman;
+
+import cn.nukkit.event.EventHandler;
+import cn.nukkit.event.EventPriority;
+import cn.nukkit.event.Listener;
+import cn.nukkit.event.plugin.PluginEnableEvent;
+
+/**
+ * Keeps PlugMan's indexes in step with plugins enabled by the server or by
+ * other plugins.
+ *
+ * @author PikyCZ
+ */
+public class PluginListener implements Listener {
+
+    private final PlugMan plugMan;
+
+    public PluginListener(PlugMan plugMan) {
+        this.plugMan = plugMan;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginEnable(PluginEnableEvent event) {
+        plugMan.getPluginIndex().add(event.getPlugin());
+        plugMan.syncRegistrationIndex(false);
+    }
+
+}
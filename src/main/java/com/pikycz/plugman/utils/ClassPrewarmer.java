@@ -0,0 +1,176 @@
+package com.pikycz.plugman.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Loads and links the classes of a freshly loaded plugin before it is
+ * enabled, so the first events after a load or reload don't stall on
+ * classloading. Static initializers only run for classes matching the
+ * configured allow-list, everything else is defined and linked but left
+ * uninitialized.
+ *
+ * @author PikyCZ
+ */
+public class ClassPrewarmer {
+
+    private static final Field PARALLEL_LOCK_MAP = findParallelLockMap();
+
+    private final List<String> initialize;
+
+    /**
+     * A prewarm of one plugin, run in steps.
+     */
+    public class Session {
+
+        private final ClassLoader loader;
+
+        private final List<String> classes;
+
+        private int next;
+
+        private int failed;
+
+        private long nanos;
+
+        private Session(ClassLoader loader, List<String> classes) {
+            this.loader = loader;
+            this.classes = classes;
+        }
+
+        /**
+         * Loads classes until all are done or the budget is used up.
+         *
+         * @param budgetNanos the time to spend, or Long.MAX_VALUE for no limit
+         * @return whether all classes are done
+         */
+        public boolean step(long budgetNanos) {
+            long start = System.nanoTime();
+            while (next < classes.size()) {
+                String name = classes.get(next++);
+                try {
+                    Class<?> clazz = Class.forName(name, isInitialized(name), loader);
+                    // Links the class and loads the types of its members.
+                    clazz.getDeclaredMethods();
+                    clazz.getDeclaredFields();
+                } catch (ClassNotFoundException | LinkageError | SecurityException e) {
+                    // Optional dependencies and the like, the plugin will hit it itself if it matters.
+                    failed++;
+                }
+                if (System.nanoTime() - start >= budgetNanos) {
+                    break;
+                }
+            }
+            nanos += System.nanoTime() - start;
+            return next >= classes.size();
+        }
+
+        /**
+         * @return whether the plugin's classloader takes concurrent loads, so
+         * the session can run off the main thread
+         */
+        public boolean isParallelCapable() {
+            return ClassPrewarmer.isParallelCapable(loader);
+        }
+
+        public int getLoaded() {
+            return next - failed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getTotal() {
+            return classes.size();
+        }
+
+        /**
+         * @return the time spent loading so far, over all steps
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+    }
+
+    /**
+     * @param initialize the classes whose static initializers may run,
+     * either full names or package prefixes ending in ".*"
+     */
+    public ClassPrewarmer(List<String> initialize) {
+        this.initialize = initialize != null ? new ArrayList<>(initialize) : new ArrayList<>();
+    }
+
+    /**
+     * Indexes the class entries of a jar. Only touches the disk, so it is
+     * safe to call off the main thread.
+     *
+     * @param loader the classloader the jar was loaded with
+     * @param jar the jar
+     * @return the session, with no class loaded yet
+     * @throws IOException if the jar can't be read
+     */
+    public Session start(ClassLoader loader, File jar) throws IOException {
+        List<String> classes = new ArrayList<>();
+        try (JarFile file = new JarFile(jar)) {
+            Enumeration<JarEntry> entries = file.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class")) {
+                    continue;
+                }
+                classes.add(name.substring(0, name.length() - 6).replace('/', '.'));
+            }
+        }
+        return new Session(loader, classes);
+    }
+
+    private boolean isInitialized(String name) {
+        for (String pattern : initialize) {
+            if (pattern.endsWith(".*")
+                    ? name.startsWith(pattern.substring(0, pattern.length() - 1))
+                    : name.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a classloader is registered as parallel capable. Other
+     * loaders lock themselves for every load, and usually share state with
+     * the server that is only safe to touch from the main thread.
+     *
+     * @param loader the classloader
+     * @return whether the loader is parallel capable, false if unknown
+     */
+    public static boolean isParallelCapable(ClassLoader loader) {
+        if (PARALLEL_LOCK_MAP == null) {
+            return false;
+        }
+        try {
+            return PARALLEL_LOCK_MAP.get(loader) != null;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    private static Field findParallelLockMap() {
+        try {
+            Field field = ClassLoader.class.getDeclaredField("parallelLockMap");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            // Not accessible on this JVM.
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.command.CommandSender;
+
+/**
+ * Routes /plugman subcommands to their handlers.
+ *
+ * Subcommand names are kept in a trie and matched case-insensitively one
+ * character at a time, so dispatching neither lowercases nor copies the
+ * arguments: handlers get a view of the arguments after the subcommand.
+ *
+ * @author PikyCZ
+ */
+public class CommandDispatcher {
+
+    private final Node root = new Node();
+
+    /**
+     * Handles one subcommand.
+     */
+    public interface Handler {
+
+        /**
+         * @param sender who ran the command
+         * @param args the arguments after the subcommand
+         * @return false to show the command's usage
+         */
+        boolean handle(CommandSender sender, Arguments args);
+
+    }
+
+    /**
+     * A view of the arguments from an offset on. Never copies the array.
+     */
+    public static class Arguments {
+
+        private final String[] args;
+
+        private final int offset;
+
+        public Arguments(String[] args, int offset) {
+            this.args = args;
+            this.offset = offset;
+        }
+
+        public int size() {
+            return Math.max(0, args.length - offset);
+        }
+
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        /**
+         * @param index the index, relative to the view
+         * @return the argument, or null if there is none at that index
+         */
+        public String get(int index) {
+            int i = offset + index;
+            return index >= 0 && i < args.length ? args[i] : null;
+        }
+
+        /**
+         * @param index the index, relative to the view
+         * @param value the value to compare with, ignoring case
+         * @return whether the argument exists and equals the value
+         */
+        public boolean is(int index, String value) {
+            String arg = get(index);
+            return arg != null && arg.equalsIgnoreCase(value);
+        }
+
+        /**
+         * @param from the first index, relative to the view
+         * @return the arguments from that index on, sharing the array
+         */
+        public Arguments from(int from) {
+            return new Arguments(args, offset + from);
+        }
+
+        /**
+         * @return the arguments joined by spaces, or null if there are none
+         */
+        public String join() {
+            return isEmpty() ? null : StringUtil.consolidateStrings(args, offset);
+        }
+
+    }
+
+    private static class Node {
+
+        // Children by lowercase ASCII letter; other characters never match a subcommand.
+        private Node[] children;
+
+        private Handler handler;
+
+    }
+
+    /**
+     * Registers a subcommand.
+     *
+     * @param name the subcommand, lowercase ASCII letters
+     * @param handler the handler
+     */
+    public void register(String name, Handler handler) {
+        Node node = root;
+        for (int i = 0; i < name.length(); i++) {
+            int c = name.charAt(i) - 'a';
+            if (c < 0 || c >= 26) {
+                throw new IllegalArgumentException("Subcommands must be lowercase letters: " + name);
+            }
+            if (node.children == null) {
+                node.children = new Node[26];
+            }
+            if (node.children[c] == null) {
+                node.children[c] = new Node();
+            }
+            node = node.children[c];
+        }
+        node.handler = handler;
+    }
+
+    /**
+     * Finds the handler of a subcommand, ignoring case.
+     *
+     * @param name the subcommand
+     * @return the handler, or null if there is none
+     */
+    public Handler find(String name) {
+        Node node = root;
+        for (int i = 0; i < name.length() && node != null; i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c < 'a' || c > 'z' || node.children == null) {
+                return null;
+            }
+            node = node.children[c - 'a'];
+        }
+        return node != null ? node.handler : null;
+    }
+
+    /**
+     * Runs the subcommand in the first argument.
+     *
+     * @param sender who ran the command
+     * @param args the command's arguments, the subcommand first
+     * @return the handler's result, or null if there is no such subcommand
+     */
+    public Boolean dispatch(CommandSender sender, String[] args) {
+        Handler handler = args.length > 0 ? find(args[0]) : null;
+        if (handler == null) {
+            return null;
+        }
+        return handler.handle(sender, new Arguments(args, 1));
+    }
+
+}
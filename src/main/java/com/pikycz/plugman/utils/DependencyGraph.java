@@ -0,0 +1,231 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.plugin.PluginDescription;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Load order of a set of plugins, built from the depend, softdepend and
+ * loadbefore entries of their descriptors.
+ *
+ * Plugins in a dependency cycle are appended after the ordered ones. Plugins
+ * with a hard dependency that is not in the set, and plugins depending on
+ * those, are reported as blocked.
+ *
+ * @author PikyCZ
+ */
+public class DependencyGraph {
+
+    private final Map<String, Plugin> plugins = new LinkedHashMap<>();
+
+    // Plugin -> plugins that have to come before it.
+    private final Map<String, Set<String>> before = new HashMap<>();
+
+    // Plugin -> plugins that have to come after it.
+    private final Map<String, Set<String>> after = new HashMap<>();
+
+    private final Map<String, Set<String>> hardDepends = new HashMap<>();
+
+    private final List<Plugin> order = new ArrayList<>();
+
+    private final Set<Plugin> blocked = new HashSet<>();
+
+    private final List<String> problems = new ArrayList<>();
+
+    private DependencyGraph(Collection<Plugin> plugins) {
+        for (Plugin plugin : plugins) {
+            String key = plugin.getName().toLowerCase();
+            this.plugins.put(key, plugin);
+            before.put(key, new LinkedHashSet<>());
+            after.put(key, new LinkedHashSet<>());
+            hardDepends.put(key, new LinkedHashSet<>());
+        }
+
+        for (Map.Entry<String, Plugin> entry : this.plugins.entrySet()) {
+            String key = entry.getKey();
+            PluginDescription desc = entry.getValue().getDescription();
+
+            for (String depend : nonNull(desc.getDepend())) {
+                String dep = depend.toLowerCase();
+                if (this.plugins.containsKey(dep)) {
+                    edge(dep, key);
+                    hardDepends.get(key).add(dep);
+                } else {
+                    problems.add(entry.getValue().getName() + " depends on " + depend + ", which is not loaded.");
+                    blocked.add(entry.getValue());
+                }
+            }
+
+            for (String softDepend : nonNull(desc.getSoftDepend())) {
+                String dep = softDepend.toLowerCase();
+                if (this.plugins.containsKey(dep)) {
+                    edge(dep, key);
+                }
+            }
+
+            for (String loadBefore : nonNull(desc.getLoadBefore())) {
+                String other = loadBefore.toLowerCase();
+                if (this.plugins.containsKey(other)) {
+                    edge(key, other);
+                }
+            }
+        }
+
+        sort();
+    }
+
+    /**
+     * Builds the graph of the given plugins. Dependencies outside the
+     * collection are treated as missing.
+     *
+     * @param plugins the plugins
+     * @return the graph
+     */
+    public static DependencyGraph build(Collection<Plugin> plugins) {
+        return new DependencyGraph(plugins);
+    }
+
+    /**
+     * @return the plugins with dependencies first
+     */
+    public List<Plugin> getOrder() {
+        return Collections.unmodifiableList(order);
+    }
+
+    /**
+     * @return the plugins with dependents first
+     */
+    public List<Plugin> getReverseOrder() {
+        List<Plugin> reverse = new ArrayList<>(order);
+        Collections.reverse(reverse);
+        return reverse;
+    }
+
+    /**
+     * @param plugin the plugin
+     * @return whether a hard dependency of the plugin is missing, directly or
+     * through another plugin
+     */
+    public boolean isBlocked(Plugin plugin) {
+        return blocked.contains(plugin);
+    }
+
+    /**
+     * @return the missing dependencies and cycles found, as messages
+     */
+    public List<String> getProblems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    /**
+     * Splits the plugins into groups that share no dependency edge with each
+     * other, so each group can be prepared independently.
+     *
+     * @return the groups, each in load order
+     */
+    public List<List<Plugin>> getComponents() {
+        Map<String, Integer> component = new HashMap<>();
+        List<List<Plugin>> components = new ArrayList<>();
+
+        for (String start : plugins.keySet()) {
+            if (component.containsKey(start)) {
+                continue;
+            }
+            int id = components.size();
+            components.add(new ArrayList<>());
+
+            ArrayDeque<String> queue = new ArrayDeque<>();
+            queue.add(start);
+            component.put(start, id);
+            while (!queue.isEmpty()) {
+                String node = queue.poll();
+                List<String> neighbours = new ArrayList<>(before.get(node));
+                neighbours.addAll(after.get(node));
+                for (String next : neighbours) {
+                    if (!component.containsKey(next)) {
+                        component.put(next, id);
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+
+        for (Plugin plugin : order) {
+            components.get(component.get(plugin.getName().toLowerCase())).add(plugin);
+        }
+        return components;
+    }
+
+    private void edge(String first, String then) {
+        if (first.equals(then)) {
+            return;
+        }
+        after.get(first).add(then);
+        before.get(then).add(first);
+    }
+
+    /**
+     * Kahn's algorithm, keeping the original order among plugins that are
+     * free to go at the same time.
+     */
+    private void sort() {
+        Map<String, Integer> pending = new HashMap<>();
+        ArrayDeque<String> ready = new ArrayDeque<>();
+
+        for (String key : plugins.keySet()) {
+            int count = before.get(key).size();
+            pending.put(key, count);
+            if (count == 0) {
+                ready.add(key);
+            }
+        }
+
+        Set<String> done = new HashSet<>();
+        while (!ready.isEmpty()) {
+            String key = ready.poll();
+            done.add(key);
+            order.add(plugins.get(key));
+            for (String next : after.get(key)) {
+                if (pending.merge(next, -1, Integer::sum) == 0) {
+                    ready.add(next);
+                }
+            }
+        }
+
+        if (done.size() < plugins.size()) {
+            List<String> cyclic = new ArrayList<>();
+            for (Map.Entry<String, Plugin> entry : plugins.entrySet()) {
+                if (!done.contains(entry.getKey())) {
+                    cyclic.add(entry.getValue().getName());
+                    order.add(entry.getValue());
+                }
+            }
+            problems.add("Dependency cycle in or behind " + String.join(", ", cyclic) + ", their order is not guaranteed.");
+        }
+
+        // A plugin is blocked when any of its hard dependencies is.
+        for (Plugin plugin : order) {
+            for (String dep : hardDepends.get(plugin.getName().toLowerCase())) {
+                if (blocked.contains(plugins.get(dep))) {
+                    blocked.add(plugin);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static List<String> nonNull(List<String> list) {
+        return list != null ? list : Collections.<String>emptyList();
+    }
+
+}
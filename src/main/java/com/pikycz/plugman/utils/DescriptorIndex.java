@@ -0,0 +1,335 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.plugin.PluginDescription;
+import cn.nukkit.plugin.PluginLoader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of the jars in the plugins folder, mapping plugin names to
+ * their jar files.
+ *
+ * Entries are keyed by file size, modification time and a content hash, so
+ * only new or changed jars have their descriptor parsed again.
+ *
+ * @author PikyCZ
+ */
+public class DescriptorIndex {
+
+    private static final int MAGIC = 0x504d4449; // "PMDI"
+
+    private static final int VERSION = 2;
+
+    private final File pluginDir;
+
+    private final File indexFile;
+
+    private final PluginLoader loader;
+
+    private final Map<String, Entry> byPath = new HashMap<>();
+
+    private final Map<String, Entry> byName = new HashMap<>();
+
+    private boolean dirty;
+
+    /**
+     * A single indexed jar.
+     */
+    public static class Entry {
+
+        private final String path;
+
+        private String name;
+
+        private long size;
+
+        private long modified;
+
+        private long hash;
+
+        private Entry(String path) {
+            this.path = path;
+        }
+
+        public File getFile() {
+            return new File(path);
+        }
+
+        /**
+         * @return the plugin name, or an empty String if the jar has no valid
+         * descriptor
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+    }
+
+    /**
+     * @param pluginDir the directory holding the plugin jars
+     * @param indexFile the file the index is persisted to
+     * @param loader the loader used to parse descriptors
+     */
+    public DescriptorIndex(File pluginDir, File indexFile, PluginLoader loader) {
+        this.pluginDir = pluginDir;
+        this.indexFile = indexFile;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the jar of a plugin, refreshing the index if the name is unknown
+     * or its jar changed since it was indexed.
+     *
+     * @param name the name of the plugin
+     * @return the jar file, or null if no jar provides that plugin
+     */
+    public synchronized File lookup(String name) {
+        Entry entry = byName.get(name.toLowerCase());
+        if (entry != null && isCurrent(entry)) {
+            return entry.getFile();
+        }
+
+        refresh();
+
+        entry = byName.get(name.toLowerCase());
+        return entry != null ? entry.getFile() : null;
+    }
+
+    /**
+     * Returns the indexed entry for a jar without touching the disk.
+     *
+     * @param file the jar file
+     * @return the entry, or null if the jar is not indexed
+     */
+    public synchronized Entry getEntry(File file) {
+        return byPath.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Brings the index up to date with the plugins folder. Jars whose size and
+     * modification time are unchanged are skipped, jars that only got touched
+     * are recognised by their hash, and entries of removed jars are dropped.
+     * New and changed jars are scanned in parallel.
+     */
+    public synchronized void refresh() {
+        File[] files = pluginDir.listFiles();
+        Set<String> seen = new HashSet<>();
+        List<File> stale = new ArrayList<>();
+
+        if (files != null) {
+            for (File f : files) {
+                if (!f.getName().endsWith(".jar") || !f.isFile()) {
+                    continue;
+                }
+
+                String path = f.getAbsolutePath();
+                seen.add(path);
+
+                Entry entry = byPath.get(path);
+                if (entry == null || !isCurrent(entry)) {
+                    stale.add(f);
+                }
+            }
+        }
+
+        // Every jar is independent, so the scans spread over all cores.
+        List<Entry> scanned = stale.parallelStream()
+                .map(f -> scan(f, byPath.get(f.getAbsolutePath())))
+                .collect(Collectors.toList());
+
+        for (Entry update : scanned) {
+            if (update == null) {
+                continue;
+            }
+            Entry entry = byPath.get(update.path);
+            if (entry != null) {
+                unmapName(entry);
+            }
+            byPath.put(update.path, update);
+            mapName(update);
+            dirty = true;
+        }
+
+        for (Iterator<Entry> it = byPath.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (!seen.contains(entry.path)) {
+                it.remove();
+                unmapName(entry);
+                dirty = true;
+            }
+        }
+
+        if (dirty) {
+            save();
+        }
+    }
+
+    /**
+     * Reads the hash and descriptor of a jar. Only reads the index, so any
+     * number of jars can be scanned at once.
+     *
+     * @param previous the jar's entry from before it changed, or null
+     * @return the new entry, or null if the jar can't be read
+     */
+    private Entry scan(File f, Entry previous) {
+        Entry entry = new Entry(f.getAbsolutePath());
+        entry.size = f.length();
+        entry.modified = f.lastModified();
+
+        PluginDescription desc;
+        try {
+            JarScanner.Result result = JarScanner.scan(f, previous != null ? previous.hash : null);
+            entry.hash = result.getHash();
+            if (result.isUnchanged()) {
+                // Only touched, the descriptor is the one already indexed.
+                entry.name = previous.name;
+                return entry;
+            }
+            desc = result.getDescription();
+        } catch (IOException e) {
+            // Let the plugin loader have a go at zips the scanner doesn't understand.
+            try {
+                entry.hash = hash(f);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return null;
+            }
+            if (previous != null && previous.hash == entry.hash) {
+                entry.name = previous.name;
+                return entry;
+            }
+            desc = null;
+            try {
+                desc = loader.getPluginDescription(f);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        entry.name = desc != null ? desc.getName() : "";
+        return entry;
+    }
+
+    private void mapName(Entry entry) {
+        if (!entry.name.isEmpty()) {
+            byName.put(entry.name.toLowerCase(), entry);
+        }
+    }
+
+    private void unmapName(Entry entry) {
+        if (entry.name != null && !entry.name.isEmpty()) {
+            byName.remove(entry.name.toLowerCase(), entry);
+        }
+    }
+
+    private static boolean isCurrent(Entry entry) {
+        File f = entry.getFile();
+        return f.length() == entry.size && f.lastModified() == entry.modified && f.isFile();
+    }
+
+    /**
+     * Returns the content hash of a file.
+     *
+     * @param f the file
+     * @return the hash
+     * @throws IOException if the file can't be read
+     */
+    public static long hash(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+            }
+        }
+        return (f.length() << 32) ^ crc.getValue();
+    }
+
+    /**
+     * Reads the index from disk. A missing or unreadable index is treated as
+     * empty.
+     */
+    public synchronized void load() {
+        byPath.clear();
+        byName.clear();
+
+        if (!indexFile.isFile()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF());
+                entry.name = in.readUTF();
+                entry.size = in.readLong();
+                entry.modified = in.readLong();
+                entry.hash = in.readLong();
+                byPath.put(entry.path, entry);
+                mapName(entry);
+            }
+        } catch (IOException e) {
+            byPath.clear();
+            byName.clear();
+        }
+    }
+
+    /**
+     * Writes the index to disk.
+     */
+    public synchronized void save() {
+        File parent = indexFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(byPath.size());
+            for (Entry entry : byPath.values()) {
+                out.writeUTF(entry.path);
+                out.writeUTF(entry.name);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeLong(entry.hash);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        if (!tmp.renameTo(indexFile)) {
+            indexFile.delete();
+            tmp.renameTo(indexFile);
+        }
+        dirty = false;
+    }
+
+}
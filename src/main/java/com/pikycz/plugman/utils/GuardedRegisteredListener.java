@@ -0,0 +1,46 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.event.Event;
+import cn.nukkit.plugin.RegisteredListener;
+import cn.nukkit.utils.EventException;
+
+/**
+ * Registered listener that counts the exceptions of the listener it wraps
+ * for the {@link PluginWatchdog}. The exceptions are passed on unchanged.
+ *
+ * @author PikyCZ
+ */
+public class GuardedRegisteredListener extends RegisteredListener {
+
+    private final RegisteredListener delegate;
+
+    private final PluginWatchdog.Health health;
+
+    /**
+     * @param delegate the listener to guard
+     * @param health where to count the exceptions
+     */
+    public GuardedRegisteredListener(RegisteredListener delegate, PluginWatchdog.Health health) {
+        super(delegate.getListener(), (listener, event) -> delegate.callEvent(event), delegate.getPriority(), delegate.getPlugin(), delegate.isIgnoringCancelled(), null);
+        this.delegate = delegate;
+        this.health = health;
+    }
+
+    /**
+     * @return the wrapped listener
+     */
+    public RegisteredListener getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void callEvent(Event event) throws EventException {
+        try {
+            delegate.callEvent(event);
+        } catch (Throwable t) {
+            health.exception();
+            throw t;
+        }
+    }
+
+}
@@ -0,0 +1,678 @@
+package com.pikycz.plugman.utils;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Breadth-first walk over the object graph through reflection, used to find
+ * out why an object is still reachable and to estimate how much heap an
+ * object graph holds.
+ *
+ * The walk reads live objects without any locking. The server changes them
+ * on the main thread only, so a {@link Walk} through server state is advanced
+ * in small slices on the main thread between ticks. The contents of a large
+ * map, collection or array are followed over several visits, so no single
+ * object overruns a slice. A walk confined to a plugin's own objects may
+ * instead run in one go on another thread; objects that change under it are
+ * skipped and counted, and the result is an approximation. A walk stops once
+ * it has visited a maximum number of objects or spent a maximum time
+ * walking, whichever comes first.
+ *
+ * @author PikyCZ
+ */
+public class HeapWalker {
+
+    // Elements of a map, collection or array followed per visit.
+    private static final int CONTENTS_PER_VISIT = 1000;
+
+    private final int maxObjects;
+
+    private final long maxNanos;
+
+    private static class Node {
+
+        private final Object value;
+
+        private final Node parent;
+
+        private final String label;
+
+        private Node(Object value, Node parent, String label) {
+            this.value = value;
+            this.parent = parent;
+            this.label = label;
+        }
+
+    }
+
+    /**
+     * The contents of a map, collection or array being followed, handed out a
+     * bounded number per visit.
+     */
+    private static class Contents {
+
+        private final Node node;
+
+        private final Iterator<?> iterator;
+
+        private int index;
+
+        private Contents(Node node) {
+            this.node = node;
+            if (node.value instanceof Map) {
+                iterator = ((Map<?, ?>) node.value).entrySet().iterator();
+            } else if (node.value instanceof Collection) {
+                iterator = ((Collection<?>) node.value).iterator();
+            } else {
+                iterator = null;
+            }
+        }
+
+        /**
+         * Adds up to the given number of elements.
+         *
+         * @return whether all elements were handed out
+         */
+        private boolean next(int max, List<Node> children) {
+            if (iterator == null) {
+                int length = Array.getLength(node.value);
+                int end = (int) Math.min(length, (long) index + max);
+                for (; index < end; index++) {
+                    add(children, Array.get(node.value, index), node, "[" + index + "]");
+                }
+                return index >= length;
+            }
+            for (int n = 0; n < max && iterator.hasNext(); n++) {
+                Object element = iterator.next();
+                if (node.value instanceof Map) {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) element;
+                    add(children, entry.getKey(), node, "<key>");
+                    add(children, entry.getValue(), node, "[" + keyLabel(entry.getKey()) + "]");
+                } else {
+                    add(children, element, node, "[" + index + "]");
+                }
+                index++;
+            }
+            return !iterator.hasNext();
+        }
+
+    }
+
+    /**
+     * A walk in progress.
+     *
+     * @param <T> the type of the result
+     */
+    public abstract class Walk<T> {
+
+        final Map<Object, Boolean> seen = new IdentityHashMap<>();
+
+        // Per walk only: holding on to Field objects would pin their classes.
+        private final Map<Class<?>, List<Field>> fieldCache = new HashMap<>();
+
+        private int visited;
+
+        int skipped;
+
+        private long nanos;
+
+        private boolean exhausted;
+
+        private boolean done;
+
+        // The container whose elements are still being handed out.
+        private Contents contents;
+
+        /**
+         * Walks until the walk is done or the slice's time is up.
+         *
+         * @param budgetNanos the nanoseconds this slice may take
+         * @return whether the walk is done
+         */
+        public boolean step(long budgetNanos) {
+            long start = System.nanoTime();
+            while (!done) {
+                long spent = System.nanoTime() - start;
+                if (visited >= maxObjects || nanos + spent > maxNanos) {
+                    exhausted = true;
+                    finish();
+                } else if (spent >= budgetNanos) {
+                    break;
+                } else if (contents != null) {
+                    more();
+                } else {
+                    visited++;
+                    if (!visit()) {
+                        finish();
+                    }
+                }
+            }
+            nanos += System.nanoTime() - start;
+            return done;
+        }
+
+        private void finish() {
+            done = true;
+            contents = null;
+            fieldCache.clear();
+        }
+
+        private void more() {
+            List<Node> children = new ArrayList<>();
+            try {
+                if (contents.next(CONTENTS_PER_VISIT, children)) {
+                    contents = null;
+                }
+            } catch (RuntimeException e) {
+                // Modified since the last slice, skip the rest of it.
+                contents = null;
+                skipped++;
+            }
+            for (Node child : children) {
+                follow(child);
+            }
+        }
+
+        /**
+         * Takes up an element of a container handed out by {@link #more}.
+         *
+         * @param child the element
+         */
+        void follow(Node child) {
+        }
+
+        /**
+         * Visits the next object.
+         *
+         * @return whether there is more to walk
+         */
+        abstract boolean visit();
+
+        /**
+         * @return the result, only complete once the walk is done
+         */
+        public abstract T getResult();
+
+        /**
+         * @return the number of objects visited
+         */
+        public int getVisited() {
+            return visited;
+        }
+
+        /**
+         * @return the number of objects skipped because they changed while
+         * they were read or could not be read
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return whether the walk stopped because it ran out of budget
+         */
+        public boolean isExhausted() {
+            return exhausted;
+        }
+
+        /**
+         * Returns the accessible reference fields of a class and its
+         * superclasses.
+         */
+        List<Field> fields(Class<?> clazz, boolean statics) {
+            if (statics) {
+                return resolve(clazz, true);
+            }
+            List<Field> fields = fieldCache.get(clazz);
+            if (fields == null) {
+                fields = resolve(clazz, false);
+                fieldCache.put(clazz, fields);
+            }
+            return fields;
+        }
+
+    }
+
+    /**
+     * @param maxObjects the maximum number of objects to visit
+     * @param maxMillis the maximum time to spend walking, summed over all
+     * slices
+     */
+    public HeapWalker(int maxObjects, long maxMillis) {
+        this.maxObjects = maxObjects;
+        this.maxNanos = maxMillis * 1000000L;
+    }
+
+    /**
+     * Returns the default roots: the server, the live threads and their
+     * context classloaders.
+     *
+     * @return the roots by label
+     */
+    public static Map<String, Object> defaultRoots() {
+        Map<String, Object> roots = new LinkedHashMap<>();
+        roots.put("Server", cn.nukkit.Server.getInstance());
+        roots.put("HandlerList.allLists", cn.nukkit.event.HandlerList.getHandlerLists());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            roots.put("Thread[" + thread.getName() + "]", thread);
+            if (thread.getContextClassLoader() != null) {
+                roots.put("Thread[" + thread.getName() + "].contextClassLoader", thread.getContextClassLoader());
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Starts a search for the shortest reference chain from one of the roots
+     * to an object matching the target. The result is the chain, or null if
+     * none was found within the budget.
+     *
+     * @param roots the roots by label
+     * @param target the predicate an object has to match
+     * @return the walk
+     */
+    public Walk<String> findPath(Map<String, Object> roots, Predicate<Object> target) {
+        return new Walk<String>() {
+
+            private final ArrayDeque<Node> queue = new ArrayDeque<>();
+
+            private String path;
+
+            {
+                for (Map.Entry<String, Object> root : roots.entrySet()) {
+                    if (root.getValue() != null && seen.put(root.getValue(), Boolean.TRUE) == null) {
+                        queue.add(new Node(root.getValue(), null, root.getKey()));
+                    }
+                }
+            }
+
+            @Override
+            boolean visit() {
+                Node node = queue.poll();
+                if (node == null) {
+                    return false;
+                }
+
+                if (target.test(node.value)) {
+                    path = describe(node);
+                    return false;
+                }
+
+                List<Node> children = new ArrayList<>();
+                try {
+                    children(this, node, children);
+                } catch (RuntimeException | LinkageError e) {
+                    // Concurrently modified or inaccessible, skip it.
+                    skipped++;
+                }
+                for (Node child : children) {
+                    follow(child);
+                }
+                return true;
+            }
+
+            @Override
+            void follow(Node child) {
+                if (seen.put(child.value, Boolean.TRUE) == null) {
+                    queue.add(child);
+                }
+            }
+
+            @Override
+            public String getResult() {
+                return path;
+            }
+
+        };
+    }
+
+    /**
+     * Adds the objects directly referenced by a node. Classes are followed
+     * through their static fields, other objects through their fields. The
+     * elements of maps, collections and arrays are handed out by the walk
+     * over the next visits instead.
+     */
+    private static void children(Walk<?> walk, Node node, List<Node> children) {
+        Object value = node.value;
+
+        if (value instanceof Walk) {
+            // Walks in progress hold their own target, it isn't leaked through them.
+            return;
+        }
+
+        if (value instanceof Class) {
+            Class<?> clazz = (Class<?>) value;
+            for (Field field : walk.fields(clazz, true)) {
+                add(children, get(field, null), node, "static " + clazz.getSimpleName() + "." + field.getName());
+            }
+            return;
+        }
+
+        Class<?> clazz = value.getClass();
+        if (clazz.getClassLoader() != null) {
+            children.add(new Node(clazz, node, "<class>"));
+        }
+
+        if (value instanceof Map || value instanceof Collection) {
+            walk.contents = new Contents(node);
+        } else if (clazz.isArray()) {
+            if (!clazz.getComponentType().isPrimitive()) {
+                walk.contents = new Contents(node);
+            }
+        } else if (!(value instanceof Reference)) {
+            for (Field field : walk.fields(clazz, false)) {
+                add(children, get(field, value), node, "." + field.getName());
+            }
+        }
+    }
+
+    private static void add(List<Node> children, Object value, Node parent, String label) {
+        if (value != null && !(value instanceof String) && !(value instanceof Number) && !(value instanceof Boolean)) {
+            children.add(new Node(value, parent, label));
+        }
+    }
+
+    /**
+     * Starts estimating the heap held by a set of roots by adding up the
+     * shallow sizes of everything reachable from them, without crossing into
+     * objects the boundary rejects. Collections, maps and arrays longer than
+     * the sample size are only followed through their first elements, and
+     * what is found there is scaled up to the full length. The result is the
+     * estimated size in bytes.
+     *
+     * @param roots the roots
+     * @param inside whether the walk may enter an object
+     * @param sample the number of elements followed per collection
+     * @return the walk
+     */
+    public Walk<Long> measure(Collection<?> roots, Predicate<Object> inside, int sample) {
+        int perCollection = Math.max(1, sample);
+        return new Walk<Long>() {
+
+            private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+            private final Map<Object, Double> weights = new IdentityHashMap<>();
+
+            private double total;
+
+            {
+                for (Object root : roots) {
+                    if (root != null && seen.put(root, Boolean.TRUE) == null) {
+                        queue.add(root);
+                    }
+                }
+            }
+
+            @Override
+            boolean visit() {
+                Object value = queue.poll();
+                if (value == null) {
+                    return false;
+                }
+                Double boxed = weights.remove(value);
+                double weight = boxed != null ? boxed : 1;
+
+                total += weight * shallowSize(value);
+
+                try {
+                    List<Object> children = new ArrayList<>();
+                    double scale = sampleChildren(this, value, perCollection, children);
+                    for (Object child : children) {
+                        if (child != null && inside.test(child) && seen.put(child, Boolean.TRUE) == null) {
+                            queue.add(child);
+                            if (weight * scale != 1) {
+                                weights.put(child, weight * scale);
+                            }
+                        }
+                    }
+                } catch (RuntimeException | LinkageError e) {
+                    // Concurrently modified or inaccessible, skip it.
+                    skipped++;
+                }
+                return true;
+            }
+
+            @Override
+            public Long getResult() {
+                return (long) total;
+            }
+
+        };
+    }
+
+    /**
+     * Starts collecting every object matching the target that is reachable
+     * from the roots without crossing into objects the boundary rejects. The
+     * walk does not continue past a match. The result is the matches,
+     * possibly incomplete if the budget ran out.
+     *
+     * @param roots the roots
+     * @param inside whether the walk may enter an object
+     * @param target the predicate an object has to match
+     * @return the walk
+     */
+    public Walk<List<Object>> findAll(Collection<?> roots, Predicate<Object> inside, Predicate<Object> target) {
+        return new Walk<List<Object>>() {
+
+            private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+            private final List<Object> found = new ArrayList<>();
+
+            {
+                for (Object root : roots) {
+                    if (root != null && seen.put(root, Boolean.TRUE) == null) {
+                        queue.add(root);
+                    }
+                }
+            }
+
+            @Override
+            boolean visit() {
+                Object value = queue.poll();
+                if (value == null) {
+                    return false;
+                }
+
+                if (target.test(value)) {
+                    found.add(value);
+                    return true;
+                }
+
+                List<Node> children = new ArrayList<>();
+                try {
+                    children(this, new Node(value, null, null), children);
+                } catch (RuntimeException | LinkageError e) {
+                    // Concurrently modified or inaccessible, skip it.
+                    skipped++;
+                }
+                for (Node child : children) {
+                    follow(child);
+                }
+                return true;
+            }
+
+            @Override
+            void follow(Node child) {
+                if (inside.test(child.value) && seen.put(child.value, Boolean.TRUE) == null) {
+                    queue.add(child.value);
+                }
+            }
+
+            @Override
+            public List<Object> getResult() {
+                return found;
+            }
+
+        };
+    }
+
+    /**
+     * Adds up to the sample size of the objects referenced by a value.
+     *
+     * @return the factor the sampled children stand for
+     */
+    private static double sampleChildren(Walk<?> walk, Object value, int sample, List<Object> children) {
+        if (value instanceof Walk) {
+            return 1;
+        }
+        if (value instanceof Class) {
+            for (Field field : walk.fields((Class<?>) value, true)) {
+                children.add(get(field, null));
+            }
+            return 1;
+        }
+
+        Class<?> clazz = value.getClass();
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            int n = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (n++ >= sample) {
+                    break;
+                }
+                children.add(entry.getKey());
+                children.add(entry.getValue());
+            }
+            return map.size() > sample ? (double) map.size() / sample : 1;
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            int n = 0;
+            for (Object element : collection) {
+                if (n++ >= sample) {
+                    break;
+                }
+                children.add(element);
+            }
+            return collection.size() > sample ? (double) collection.size() / sample : 1;
+        } else if (clazz.isArray()) {
+            if (clazz.getComponentType().isPrimitive()) {
+                return 1;
+            }
+            int length = Array.getLength(value);
+            for (int i = 0; i < Math.min(length, sample); i++) {
+                children.add(Array.get(value, i));
+            }
+            return length > sample ? (double) length / sample : 1;
+        } else if (!(value instanceof Reference)) {
+            for (Field field : walk.fields(clazz, false)) {
+                children.add(get(field, value));
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Estimates the shallow size of an object, assuming a 64-bit JVM with
+     * compressed references.
+     *
+     * @param value the object
+     * @return the size in bytes
+     */
+    static long shallowSize(Object value) {
+        Class<?> clazz = value.getClass();
+        if (clazz.isArray()) {
+            return align(16 + (long) Array.getLength(value) * slotSize(clazz.getComponentType()));
+        }
+        long size = 12;
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            Field[] declared;
+            try {
+                declared = c.getDeclaredFields();
+            } catch (LinkageError e) {
+                continue;
+            }
+            for (Field field : declared) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += slotSize(field.getType());
+                }
+            }
+        }
+        return align(size);
+    }
+
+    private static int slotSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        } else if (type == char.class || type == short.class) {
+            return 2;
+        }
+        return 4;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static String keyLabel(Object key) {
+        if (key instanceof String || key instanceof Number || key instanceof Enum) {
+            return key.toString();
+        }
+        return key == null ? "null" : key.getClass().getSimpleName();
+    }
+
+    private static Object get(Field field, Object owner) {
+        try {
+            return field.get(owner);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static List<Field> resolve(Class<?> clazz, boolean statics) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null; c = statics ? null : c.getSuperclass()) {
+            Field[] declared;
+            try {
+                declared = c.getDeclaredFields();
+            } catch (LinkageError e) {
+                continue;
+            }
+            for (Field field : declared) {
+                if (field.getType().isPrimitive() || Modifier.isStatic(field.getModifiers()) != statics) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    fields.add(field);
+                } catch (RuntimeException e) {
+                    // Not opened to us.
+                }
+            }
+        }
+        return fields.isEmpty() ? Collections.<Field>emptyList() : fields;
+    }
+
+    private static String describe(Node node) {
+        List<String> labels = new ArrayList<>();
+        for (Node n = node; n != null; n = n.parent) {
+            String type = n.value instanceof Class ? "" : " (" + n.value.getClass().getName() + ")";
+            labels.add(n.label + type);
+        }
+        Collections.reverse(labels);
+
+        StringBuilder sb = new StringBuilder();
+        for (String label : labels) {
+            if (sb.length() > 0) {
+                sb.append("\n  -> ");
+            }
+            sb.append(label);
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,282 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.plugin.PluginDescription;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the plugin descriptor of a jar straight from its zip central
+ * directory, without building a {@link java.util.zip.ZipFile}. Only the end
+ * of the file, the central directory and the descriptor entry itself are
+ * read, with positional reads into heap buffers. The file is not mapped, as
+ * a mapping keeps the jar locked on Windows until it is garbage collected.
+ *
+ * Stateless and safe to use from several threads at once.
+ *
+ * @author PikyCZ
+ */
+public final class JarScanner {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+
+    private static final int CEN_SIGNATURE = 0x02014b50;
+
+    private static final int LOC_SIGNATURE = 0x04034b50;
+
+    private static final int EOCD_SIZE = 22;
+
+    private static final int CEN_SIZE = 46;
+
+    private static final int LOC_SIZE = 30;
+
+    private static final int MAX_COMMENT = 0xffff;
+
+    // Descriptors are a few KB; anything claiming more is a damaged or hostile jar.
+    private static final int MAX_DESCRIPTOR = 1024 * 1024;
+
+    // Same preference as the plugin loader.
+    private static final String[] DESCRIPTORS = {"nukkit.yml", "plugin.yml"};
+
+    /**
+     * What a scan found in a jar.
+     */
+    public static class Result {
+
+        private final long hash;
+
+        private final PluginDescription description;
+
+        private final boolean unchanged;
+
+        private Result(long hash, PluginDescription description, boolean unchanged) {
+            this.hash = hash;
+            this.description = description;
+            this.unchanged = unchanged;
+        }
+
+        /**
+         * @return the hash of the jar's central directory, which holds the
+         * CRC of every entry and so changes with the content
+         */
+        public long getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the plugin descriptor, or null if the jar has none or it is
+         * invalid
+         */
+        public PluginDescription getDescription() {
+            return description;
+        }
+
+        /**
+         * @return whether the hash was the known one, in which case the
+         * descriptor was not read
+         */
+        public boolean isUnchanged() {
+            return unchanged;
+        }
+
+    }
+
+    private JarScanner() {
+    }
+
+    /**
+     * Scans a jar.
+     *
+     * @param file the jar
+     * @return the hash and descriptor of the jar
+     * @throws IOException if the file can't be read or is not a zip this
+     * scanner understands, e.g. a zip64 archive
+     */
+    public static Result scan(File file) throws IOException {
+        return scan(file, null);
+    }
+
+    /**
+     * Scans a jar, skipping the descriptor if the jar's hash is the known
+     * one.
+     *
+     * @param file the jar
+     * @param known the hash of the jar when it was last scanned, or null
+     * @return the hash and descriptor of the jar
+     * @throws IOException if the file can't be read or is not a zip this
+     * scanner understands, e.g. a zip64 archive
+     */
+    public static Result scan(File file, Long known) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long length = channel.size();
+            if (length < EOCD_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException(file.getName() + " is not a supported zip file.");
+            }
+
+            // The end of central directory record, behind a comment of up to 64KB.
+            long tailStart = Math.max(0, length - EOCD_SIZE - MAX_COMMENT);
+            ByteBuffer tail = read(channel, tailStart, (int) (length - tailStart));
+            int eocd = findEndOfCentralDirectory(tail);
+            if (eocd < 0) {
+                throw new IOException(file.getName() + " has no zip central directory.");
+            }
+
+            int entries = tail.getShort(eocd + 10) & 0xffff;
+            long cenSize = tail.getInt(eocd + 12) & 0xffffffffL;
+            long cenOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+            if (entries == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL || cenOffset + cenSize > tailStart + eocd) {
+                throw new IOException(file.getName() + " is a zip64 or damaged zip file.");
+            }
+
+            ByteBuffer cen = read(channel, cenOffset, (int) cenSize);
+            CRC32 crc = new CRC32();
+            crc.update(cen.array(), 0, cen.capacity());
+            long hash = (length << 32) ^ crc.getValue();
+
+            if (known != null && known == hash) {
+                return new Result(hash, null, true);
+            }
+
+            PluginDescription description = null;
+            for (String name : DESCRIPTORS) {
+                int header = findEntry(cen, entries, name);
+                if (header >= 0) {
+                    description = parse(readEntry(channel, length, cen, header));
+                    break;
+                }
+            }
+
+            return new Result(hash, description, false);
+        } catch (RuntimeException | DataFormatException e) {
+            // Offsets out of range surface as IndexOutOfBounds, IllegalArgument or BufferUnderflow exceptions.
+            throw new IOException(file.getName() + " is a damaged zip file.", e);
+        }
+    }
+
+    /**
+     * Reads part of a file into a little-endian heap buffer.
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Scans for the end of central directory record backwards from the end of
+     * the tail of the file.
+     */
+    private static int findEndOfCentralDirectory(ByteBuffer tail) {
+        for (int i = tail.capacity() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tail.capacity()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the entry's header in the central directory,
+     * or -1 if there is none
+     */
+    private static int findEntry(ByteBuffer cen, int entries, String name) {
+        byte[] wanted = name.getBytes(StandardCharsets.UTF_8);
+        int end = cen.capacity();
+        int pos = 0;
+        for (int i = 0; i < entries && pos + CEN_SIZE <= end; i++) {
+            if (cen.getInt(pos) != CEN_SIGNATURE) {
+                return -1;
+            }
+            int nameLength = cen.getShort(pos + 28) & 0xffff;
+            int extraLength = cen.getShort(pos + 30) & 0xffff;
+            int commentLength = cen.getShort(pos + 32) & 0xffff;
+
+            if (nameLength == wanted.length && matches(cen, pos + CEN_SIZE, wanted)) {
+                return pos;
+            }
+            pos += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+        return -1;
+    }
+
+    private static boolean matches(ByteBuffer cen, int pos, byte[] wanted) {
+        for (int i = 0; i < wanted.length; i++) {
+            if (cen.get(pos + i) != wanted[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readEntry(FileChannel channel, long length, ByteBuffer cen, int header) throws IOException, DataFormatException {
+        int method = cen.getShort(header + 10) & 0xffff;
+        int compressedSize = cen.getInt(header + 20);
+        int size = cen.getInt(header + 24);
+        long local = cen.getInt(header + 42) & 0xffffffffL;
+
+        if (local + LOC_SIZE > length || compressedSize < 0 || size < 0) {
+            throw new IOException("Damaged local header.");
+        }
+        if (size > MAX_DESCRIPTOR || compressedSize > MAX_DESCRIPTOR) {
+            throw new IOException("Descriptor entry of " + Math.max(size, compressedSize) + " bytes is too large.");
+        }
+        ByteBuffer loc = read(channel, local, LOC_SIZE);
+        if (loc.getInt(0) != LOC_SIGNATURE) {
+            throw new IOException("Damaged local header.");
+        }
+        // The local header has its own name and extra field lengths.
+        long data = local + LOC_SIZE + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+        if (data + compressedSize > length) {
+            throw new IOException("Descriptor entry runs past the end of the file.");
+        }
+
+        byte[] raw = read(channel, data, compressedSize).array();
+
+        byte[] content;
+        if (method == 0) {
+            content = raw;
+        } else if (method == 8) {
+            content = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(raw);
+                int n = 0;
+                while (n < size && !inflater.finished()) {
+                    int read = inflater.inflate(content, n, size - n);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += read;
+                }
+                if (n != size) {
+                    throw new IOException("Truncated descriptor entry.");
+                }
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new IOException("Unsupported compression method " + method + ".");
+        }
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    private static PluginDescription parse(String yaml) {
+        try {
+            return new PluginDescription(yaml);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.pikycz.plugman.utils;
+
+/**
+ * Fixed-size log-linear histogram of nanosecond values, in the spirit of
+ * HdrHistogram: every power of two is split into 16 linear buckets, which
+ * keeps the relative error of a percentile within about 6% from 1ns up to
+ * the full long range in under 8KB.
+ *
+ * Recording is not synchronized. Record from one thread at a time; readers
+ * on other threads get a best-effort snapshot.
+ *
+ * @author PikyCZ
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR = 32;
+
+    private static final int SUB_BUCKETS = 16;
+
+    private static final int BUCKETS = LINEAR + 59 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long count;
+
+    private long total;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, negative values count as zero
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        total += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * Returns the value below which the given share of the recorded values
+     * fall, as the upper bound of its bucket.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the value, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(i));
+            }
+        }
+        return max;
+    }
+
+    static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - 4;
+        int top = (int) (value >>> shift);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int k = index - LINEAR;
+        int shift = k / SUB_BUCKETS + 1;
+        long top = k % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+}
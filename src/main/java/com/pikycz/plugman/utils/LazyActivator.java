@@ -0,0 +1,447 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.Server;
+import cn.nukkit.command.Command;
+import cn.nukkit.command.CommandSender;
+import cn.nukkit.command.SimpleCommandMap;
+import cn.nukkit.event.Event;
+import cn.nukkit.event.EventHandler;
+import cn.nukkit.event.EventPriority;
+import cn.nukkit.event.HandlerList;
+import cn.nukkit.event.Listener;
+import cn.nukkit.event.player.PlayerCommandPreprocessEvent;
+import cn.nukkit.event.server.ServerCommandEvent;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.plugin.PluginDescription;
+import cn.nukkit.plugin.RegisteredListener;
+import cn.nukkit.utils.Logger;
+import com.pikycz.plugman.PlugMan;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the plugins of the lazy folder on first use instead of at startup.
+ *
+ * For every jar only the descriptor is read. Its commands are registered as
+ * proxies and the events declared for it in the config get a listener stub;
+ * the first command or event loads and enables the real plugin, which then
+ * gets the command or event that triggered it. Plugins that go unused for
+ * the idle time are unloaded again and their proxies come back.
+ *
+ * An event fired off the main thread only schedules the load, so the plugin
+ * misses that one event. The triggering event reaches the plugin's handlers
+ * at the lowest priority, before those of the other plugins.
+ *
+ * @author PikyCZ
+ */
+public class LazyActivator implements Listener {
+
+    // A plugin that failed to load is tried again on the first use after this.
+    private static final long RETRY_MILLIS = 60000;
+
+    private final PlugMan plugMan;
+
+    private final Logger logger;
+
+    private final File folder;
+
+    private final long idleMillis;
+
+    private final Map<String, LazyPlugin> plugins = new LinkedHashMap<>();
+
+    // Command labels, with and without their fallback prefix, to the plugin declaring them.
+    private final Map<String, LazyPlugin> labels = new HashMap<>();
+
+    private static class LazyPlugin {
+
+        private final File file;
+
+        private final PluginDescription description;
+
+        private final List<ProxyCommand> proxies = new ArrayList<>();
+
+        private Plugin plugin;
+
+        // When loading last failed, 0 if it didn't.
+        private long failedAt;
+
+        private long lastUsed;
+
+        private LazyPlugin(File file, PluginDescription description) {
+            this.file = file;
+            this.description = description;
+        }
+
+    }
+
+    /**
+     * Stands in for a command of a plugin that is not loaded yet.
+     */
+    private class ProxyCommand extends Command {
+
+        private final LazyPlugin lazy;
+
+        private ProxyCommand(LazyPlugin lazy, String name, String description, String usage, String[] aliases) {
+            super(name, description, usage, aliases);
+            this.lazy = lazy;
+        }
+
+        @Override
+        public boolean execute(CommandSender sender, String label, String[] args) {
+            if (!testPermission(sender)) {
+                return true;
+            }
+
+            if (!activate(lazy, "/" + label)) {
+                sender.sendMessage(plugMan.PluginPrefix + " §c" + lazy.description.getName() + " could not be loaded, it is tried again after a minute.");
+                return true;
+            }
+
+            Command real = Server.getInstance().getCommandMap().getCommand(label);
+            if (real == null || real instanceof ProxyCommand) {
+                sender.sendMessage(plugMan.PluginPrefix + " §c" + lazy.description.getName() + " did not register /" + label + ".");
+                return true;
+            }
+            return real.execute(sender, label, args);
+        }
+
+    }
+
+    /**
+     * @param plugMan the plugin owning the proxies and stubs
+     * @param logger where to report loads and unloads to
+     * @param folder the folder holding the lazy plugins
+     * @param idleMillis how long a loaded plugin may go unused before it is
+     * unloaded, 0 to keep it loaded
+     */
+    public LazyActivator(PlugMan plugMan, Logger logger, File folder, long idleMillis) {
+        this.plugMan = plugMan;
+        this.logger = logger;
+        this.folder = folder;
+        this.idleMillis = Math.max(0, idleMillis);
+    }
+
+    /**
+     * Reads the descriptors of the lazy folder and registers the proxies and
+     * stubs.
+     *
+     * @param events the event classes that load a plugin, by plugin name
+     */
+    public void start(Map<String, List<String>> events) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (!file.getName().endsWith(".jar") || !file.isFile()) {
+                continue;
+            }
+
+            PluginDescription description;
+            try {
+                description = JarScanner.scan(file).getDescription();
+            } catch (IOException e) {
+                logger.warning("Could not read " + file.getName() + ": " + e.getMessage());
+                continue;
+            }
+            if (description == null) {
+                logger.warning(file.getName() + " has no valid plugin descriptor.");
+                continue;
+            }
+            if (PluginUtil.getPluginByName(description.getName()) != null || plugins.containsKey(description.getName().toLowerCase())) {
+                logger.warning(description.getName() + " is already loaded, " + file.getName() + " is skipped.");
+                continue;
+            }
+
+            LazyPlugin lazy = new LazyPlugin(file, description);
+            plugins.put(description.getName().toLowerCase(), lazy);
+            registerProxies(lazy);
+            registerStubs(lazy, events.getOrDefault(description.getName(), Collections.emptyList()));
+        }
+
+        if (idleMillis > 0) {
+            Server.getInstance().getPluginManager().registerEvents(this, plugMan);
+            int period = (int) Math.max(20, Math.min(idleMillis / 50 / 4, 20 * 60));
+            Server.getInstance().getScheduler().scheduleRepeatingTask(plugMan, this::unloadIdle, period);
+        }
+
+        if (!plugins.isEmpty()) {
+            logger.info("Waiting for first use of " + plugins.size() + " lazy plugins.");
+        }
+    }
+
+    /**
+     * Takes the proxies out of the command map, so nothing of PlugMan stays
+     * registered once it is disabled. The event stubs and the idle task are
+     * PlugMan's, the server drops them when it disables PlugMan. Plugins that
+     * were loaded stay loaded.
+     */
+    public void stop() {
+        for (LazyPlugin lazy : plugins.values()) {
+            unregisterProxies(lazy);
+        }
+        plugins.clear();
+        labels.clear();
+    }
+
+    /**
+     * @return the names of the lazy plugins and whether each one is loaded
+     */
+    public Map<String, Boolean> getPlugins() {
+        Map<String, Boolean> states = new LinkedHashMap<>();
+        for (LazyPlugin lazy : plugins.values()) {
+            states.put(lazy.description.getName(), lazy.plugin != null);
+        }
+        return states;
+    }
+
+    private void registerProxies(LazyPlugin lazy) {
+        Map<String, Object> commands = lazy.description.getCommands();
+        if (commands == null) {
+            return;
+        }
+
+        SimpleCommandMap commandMap = Server.getInstance().getCommandMap();
+        String prefix = lazy.description.getName().toLowerCase();
+        for (Map.Entry<String, Object> entry : commands.entrySet()) {
+            String name = entry.getKey();
+            Map<?, ?> data = entry.getValue() instanceof Map ? (Map<?, ?>) entry.getValue() : Collections.emptyMap();
+
+            List<String> aliases = new ArrayList<>();
+            Object declared = data.get("aliases");
+            if (declared instanceof List) {
+                for (Object alias : (List<?>) declared) {
+                    aliases.add(String.valueOf(alias));
+                }
+            } else if (declared != null) {
+                aliases.add(String.valueOf(declared));
+            }
+
+            ProxyCommand proxy = new ProxyCommand(lazy, name, text(data.get("description")), text(data.get("usage")), aliases.toArray(new String[0]));
+            if (data.get("permission") != null) {
+                proxy.setPermission(String.valueOf(data.get("permission")));
+            }
+            commandMap.register(prefix, proxy);
+            lazy.proxies.add(proxy);
+
+            labels.put(name.toLowerCase(), lazy);
+            labels.put(prefix + ":" + name.toLowerCase(), lazy);
+            for (String alias : aliases) {
+                labels.put(alias.toLowerCase(), lazy);
+                labels.put(prefix + ":" + alias.toLowerCase(), lazy);
+            }
+        }
+    }
+
+    private void unregisterProxies(LazyPlugin lazy) {
+        SimpleCommandMap commandMap = Server.getInstance().getCommandMap();
+        Map<String, Command> known = plugMan.getServerInternals().getKnownCommands(commandMap);
+        for (ProxyCommand proxy : lazy.proxies) {
+            if (known != null) {
+                known.values().removeIf(command -> command == proxy);
+            }
+            proxy.unregister(commandMap);
+        }
+        lazy.proxies.clear();
+    }
+
+    private void registerStubs(LazyPlugin lazy, List<String> events) {
+        for (String name : events) {
+            Class<? extends Event> type;
+            try {
+                type = Class.forName(name, false, Server.class.getClassLoader()).asSubclass(Event.class);
+            } catch (ClassNotFoundException | ClassCastException e) {
+                logger.warning("Unknown event " + name + " declared for " + lazy.description.getName() + ".");
+                continue;
+            }
+
+            try {
+                // Stays registered once the plugin is loaded, to see whether it is still in use.
+                Server.getInstance().getPluginManager().registerEvent(type, new Listener() {
+                }, EventPriority.LOWEST, (listener, event) -> onEvent(lazy, event), plugMan, false);
+            } catch (Exception e) {
+                logger.warning("Can't listen to " + name + " for " + lazy.description.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void onEvent(LazyPlugin lazy, Event event) {
+        if (lazy.plugin != null) {
+            lazy.lastUsed = System.currentTimeMillis();
+            return;
+        }
+        if (isBackingOff(lazy)) {
+            return;
+        }
+
+        if (!Server.getInstance().isPrimaryThread()) {
+            Server.getInstance().getScheduler().scheduleTask(plugMan, () -> activate(lazy, event.getClass().getSimpleName()));
+            return;
+        }
+
+        if (activate(lazy, event.getClass().getSimpleName())) {
+            deliver(lazy.plugin, event);
+        }
+    }
+
+    /**
+     * Hands the event that loaded a plugin to the plugin's handlers, which
+     * were registered after the server started calling the event's handlers.
+     */
+    private void deliver(Plugin plugin, Event event) {
+        HandlerList handlers = handlers(event.getClass());
+        if (handlers == null) {
+            return;
+        }
+        for (RegisteredListener listener : handlers.getRegisteredListeners()) {
+            if (listener.getPlugin() == plugin) {
+                try {
+                    listener.callEvent(event);
+                } catch (Exception e) {
+                    logger.warning("Could not pass " + event.getClass().getSimpleName() + " to " + plugin.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static HandlerList handlers(Class<?> type) {
+        for (Class<?> c = type; c != null && Event.class.isAssignableFrom(c); c = c.getSuperclass()) {
+            try {
+                Method method = c.getDeclaredMethod("getHandlers");
+                method.setAccessible(true);
+                return (HandlerList) method.invoke(null);
+            } catch (NoSuchMethodException e) {
+                // Declared further up.
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads and enables a lazy plugin, unless it is loaded already.
+     *
+     * @return whether the plugin is loaded
+     */
+    private boolean activate(LazyPlugin lazy, String trigger) {
+        lazy.lastUsed = System.currentTimeMillis();
+        if (lazy.plugin != null) {
+            return true;
+        }
+        if (isBackingOff(lazy)) {
+            return false;
+        }
+
+        // The real commands can't take the labels while the proxies hold them.
+        unregisterProxies(lazy);
+
+        long start = System.nanoTime();
+        String error = PluginUtil.load(lazy.file);
+        Plugin plugin = PluginUtil.getPluginByName(lazy.description.getName());
+
+        if (error != null || plugin == null || !plugin.isEnabled()) {
+            lazy.failedAt = System.currentTimeMillis();
+            if (plugin != null) {
+                PluginUtil.unload(plugin);
+            }
+            registerProxies(lazy);
+            logger.warning("Could not load " + lazy.description.getName() + " on first use of " + trigger + (error != null ? ": " + error : "."));
+            return false;
+        }
+
+        lazy.plugin = plugin;
+        lazy.failedAt = 0;
+        logger.info("Loaded " + plugin.getName() + " on first use of " + trigger + " in " + (System.nanoTime() - start) / 1000000 + "ms.");
+        return true;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerCommand(PlayerCommandPreprocessEvent event) {
+        used(event.getMessage());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onServerCommand(ServerCommandEvent event) {
+        used(event.getCommand());
+    }
+
+    private void used(String line) {
+        int start = line.startsWith("/") ? 1 : 0;
+        int end = line.indexOf(' ', start);
+        LazyPlugin lazy = labels.get(line.substring(start, end < 0 ? line.length() : end).toLowerCase());
+        if (lazy != null && lazy.plugin != null) {
+            lazy.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Unloads the loaded plugins that went unused for the idle time, unless
+     * another enabled plugin depends on them, and puts their proxies back.
+     */
+    private void unloadIdle() {
+        long now = System.currentTimeMillis();
+        for (LazyPlugin lazy : plugins.values()) {
+            if (lazy.plugin == null) {
+                continue;
+            }
+
+            if (PluginUtil.getPluginByName(lazy.description.getName()) != lazy.plugin) {
+                // Unloaded or replaced by someone else, wait for the next use again.
+                lazy.plugin = null;
+                registerProxies(lazy);
+                continue;
+            }
+
+            if (now - lazy.lastUsed < idleMillis || isNeeded(lazy.plugin)) {
+                continue;
+            }
+
+            PluginUtil.unload(lazy.plugin);
+            lazy.plugin = null;
+            registerProxies(lazy);
+            logger.info("Unloaded " + lazy.description.getName() + " after " + (now - lazy.lastUsed) / 60000 + " minutes without use.");
+        }
+    }
+
+    private static boolean isNeeded(Plugin plugin) {
+        for (Plugin other : Server.getInstance().getPluginManager().getPlugins().values()) {
+            if (other == plugin || !other.isEnabled()) {
+                continue;
+            }
+            PluginDescription description = other.getDescription();
+            if (contains(description.getDepend(), plugin.getName()) || contains(description.getSoftDepend(), plugin.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(List<String> names, String name) {
+        if (names != null) {
+            for (String n : names) {
+                if (n.equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBackingOff(LazyPlugin lazy) {
+        return lazy.failedAt != 0 && System.currentTimeMillis() - lazy.failedAt < RETRY_MILLIS;
+    }
+
+    private static String text(Object value) {
+        return value != null ? String.valueOf(value) : "";
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.utils.Logger;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the classloaders of unloaded plugins and reports when they are
+ * collected, or which reference chain still keeps them alive once a timeout
+ * has passed.
+ *
+ * This replaces forcing a full collection after every unload: the tracker
+ * thread sleeps on the reference queue and costs nothing while no loader is
+ * pending. The reference chain is searched on the main thread, a slice per
+ * tick, as the walk reads the server's collections.
+ *
+ * @author PikyCZ
+ */
+public class LeakTracker {
+
+    private final Logger logger;
+
+    private final long timeoutMillis;
+
+    private final HeapWalker walker;
+
+    private final PluginPipeline pipeline;
+
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+
+    private final Set<TrackedLoader> pending = Collections.newSetFromMap(new ConcurrentHashMap<TrackedLoader, Boolean>());
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    private static class TrackedLoader extends PhantomReference<ClassLoader> {
+
+        private final String name;
+
+        private final long unloadedAt = System.currentTimeMillis();
+
+        // Cleared before the phantom is enqueued, lets the report reach the loader while it is still strongly reachable.
+        private final WeakReference<ClassLoader> weak;
+
+        private boolean reported;
+
+        private TrackedLoader(String name, ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.name = name;
+            this.weak = new WeakReference<>(loader);
+        }
+
+    }
+
+    /**
+     * @param logger where to report to
+     * @param timeoutMillis how long a loader may stay reachable before it is
+     * reported as leaked
+     * @param walker the walker used to find the reference chain of a leak
+     * @param pipeline the pipeline the walk runs on
+     */
+    public LeakTracker(Logger logger, long timeoutMillis, HeapWalker walker, PluginPipeline pipeline) {
+        this.logger = logger;
+        this.timeoutMillis = timeoutMillis;
+        this.walker = walker;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Starts the tracker thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "PlugMan LeakTracker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the tracker thread. Loaders still pending are forgotten.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Starts tracking the classloader of an unloaded plugin.
+     *
+     * @param name the plugin's name
+     * @param loader the plugin's classloader
+     */
+    public void track(String name, ClassLoader loader) {
+        if (!running) {
+            return;
+        }
+        pending.add(new TrackedLoader(name, loader, queue));
+
+        // Wake the thread so it picks up the new deadline.
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * @return the number of loaders that have not been collected yet
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = nextDeadline();
+
+            try {
+                Reference<? extends ClassLoader> ref = deadline == Long.MAX_VALUE
+                        ? queue.remove()
+                        : queue.remove(Math.max(1, deadline - System.currentTimeMillis()));
+                while (ref != null) {
+                    collected((TrackedLoader) ref);
+                    ref = queue.poll();
+                }
+            } catch (InterruptedException e) {
+                // New loader tracked or stopping.
+            }
+
+            long now = System.currentTimeMillis();
+            for (TrackedLoader tracked : pending) {
+                if (!tracked.reported && now - tracked.unloadedAt >= timeoutMillis) {
+                    tracked.reported = true;
+                    report(tracked);
+                }
+            }
+        }
+    }
+
+    private long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (TrackedLoader tracked : pending) {
+            if (!tracked.reported) {
+                next = Math.min(next, tracked.unloadedAt + timeoutMillis);
+            }
+        }
+        return next;
+    }
+
+    private void collected(TrackedLoader tracked) {
+        pending.remove(tracked);
+        long after = System.currentTimeMillis() - tracked.unloadedAt;
+        if (tracked.reported) {
+            logger.info("Classloader of " + tracked.name + " was collected after all, " + after + "ms after unload.");
+        } else {
+            logger.debug("Classloader of " + tracked.name + " was collected " + after + "ms after unload.");
+        }
+    }
+
+    private void report(TrackedLoader tracked) {
+        ClassLoader loader = tracked.weak.get();
+        if (loader == null) {
+            // Only weakly reachable, the phantom will be enqueued with the next collection.
+            return;
+        }
+
+        // Only the walk may hold on to the loader, it is never reported through its own walk.
+        HeapWalker.Walk<String> walk = walker.findPath(HeapWalker.defaultRoots(), o -> o == loader
+                || (o instanceof Class ? ((Class<?>) o).getClassLoader() == loader : o.getClass().getClassLoader() == loader));
+
+        pipeline.walk(walk).whenComplete((path, error) -> {
+            if (error != null) {
+                logger.debug("Could not look for the reference chain of " + tracked.name + ": " + error);
+            } else if (path != null) {
+                logger.warning("Classloader of " + tracked.name + " is still reachable " + timeoutMillis / 1000 + "s after unload, it leaks through:\n  " + path);
+            } else if (walk.isExhausted()) {
+                logger.warning("Classloader of " + tracked.name + " is still reachable " + timeoutMillis / 1000 + "s after unload, no path found within " + walk.getVisited() + " objects.");
+            } else {
+                logger.notice("Classloader of " + tracked.name + " is not collected yet but no strong path to it was found, it is probably waiting for the next old generation collection.");
+            }
+        });
+    }
+
+}
@@ -0,0 +1,290 @@
+package com.pikycz.plugman.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-plugin timing and allocation of the lifecycle steps PlugMan drives.
+ *
+ * @author PikyCZ
+ */
+public class LifecycleTimings {
+
+    /**
+     * A step of loading, enabling, disabling or unloading a plugin.
+     */
+    public enum Phase {
+
+        SCAN("jar scan"),
+        CLASSLOAD("classload"),
+        ON_LOAD("onLoad"),
+        PREWARM("prewarm"),
+        ON_ENABLE("onEnable"),
+        ON_DISABLE("onDisable"),
+        CLEANUP("cleanup");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+    }
+
+    /**
+     * Recorded durations and allocations of one phase of one plugin.
+     */
+    public static class Stats {
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private long allocated;
+
+        private synchronized void record(long nanos, long bytes) {
+            histogram.record(nanos);
+            if (bytes > 0) {
+                allocated += bytes;
+            }
+        }
+
+        public synchronized long getCount() {
+            return histogram.getCount();
+        }
+
+        public synchronized long getPercentile(double percentile) {
+            return histogram.getPercentile(percentile);
+        }
+
+        public synchronized long getMax() {
+            return histogram.getMax();
+        }
+
+        public synchronized long getTotal() {
+            return histogram.getTotal();
+        }
+
+        /**
+         * @return the bytes allocated on the calling thread, summed over all
+         * recordings
+         */
+        public synchronized long getAllocated() {
+            return allocated;
+        }
+
+    }
+
+    /**
+     * A running measurement, finished with {@link #stop()}.
+     */
+    public class Span {
+
+        private final String plugin;
+
+        private final Phase phase;
+
+        private final long start = System.nanoTime();
+
+        private final long allocatedAtStart = allocatedBytes();
+
+        private Span(String plugin, Phase phase) {
+            this.plugin = plugin;
+            this.phase = phase;
+        }
+
+        public void stop() {
+            stop(plugin);
+        }
+
+        /**
+         * Finishes the measurement under another name, for steps that only
+         * learn the plugin's name once they are done.
+         *
+         * @param plugin the plugin's name
+         */
+        public void stop(String plugin) {
+            long nanos = System.nanoTime() - start;
+            long allocated = allocatedAtStart < 0 ? -1 : allocatedBytes() - allocatedAtStart;
+            stats(plugin, phase).record(nanos, allocated);
+        }
+
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Map<String, Map<Phase, Stats>> plugins = new ConcurrentHashMap<>();
+
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+
+    /**
+     * Starts measuring a phase on the calling thread.
+     *
+     * @param plugin the plugin's name
+     * @param phase the phase
+     * @return the running measurement
+     */
+    public Span start(String plugin, Phase phase) {
+        return new Span(plugin, phase);
+    }
+
+    /**
+     * Records a phase measured by the caller, e.g. one spread over several
+     * ticks.
+     *
+     * @param plugin the plugin's name
+     * @param phase the phase
+     * @param nanos the time spent
+     */
+    public void record(String plugin, Phase phase, long nanos) {
+        stats(plugin, phase).record(nanos, -1);
+    }
+
+    /**
+     * @return the names of the plugins with recorded timings, sorted
+     */
+    public List<String> getPlugins() {
+        List<String> sorted = new ArrayList<>(names.values());
+        Collections.sort(sorted, String.CASE_INSENSITIVE_ORDER);
+        return sorted;
+    }
+
+    /**
+     * @param plugin the plugin's name
+     * @return the recorded phases of the plugin, empty if none
+     */
+    public Map<Phase, Stats> getStats(String plugin) {
+        Map<Phase, Stats> stats = plugins.get(plugin.toLowerCase());
+        if (stats == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (stats) {
+            return new EnumMap<>(stats);
+        }
+    }
+
+    /**
+     * Drops everything recorded.
+     */
+    public void reset() {
+        plugins.clear();
+        names.clear();
+    }
+
+    private Stats stats(String plugin, Phase phase) {
+        names.putIfAbsent(plugin.toLowerCase(), plugin);
+        Map<Phase, Stats> phases = plugins.computeIfAbsent(plugin.toLowerCase(), k -> new EnumMap<>(Phase.class));
+        synchronized (phases) {
+            return phases.computeIfAbsent(phase, k -> new Stats());
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the calling thread so far, or -1 if the
+     * JVM doesn't track it
+     */
+    public static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes all timings as CSV, one line per plugin and phase.
+     *
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writeCsv(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            out.write("plugin,phase,count,total_ms,p50_ms,p99_ms,max_ms,allocated_bytes\n");
+            for (String plugin : getPlugins()) {
+                for (Map.Entry<Phase, Stats> entry : getStats(plugin).entrySet()) {
+                    Stats stats = entry.getValue();
+                    out.write(plugin + "," + entry.getKey().getLabel() + "," + stats.getCount()
+                            + "," + millis(stats.getTotal()) + "," + millis(stats.getPercentile(50))
+                            + "," + millis(stats.getPercentile(99)) + "," + millis(stats.getMax())
+                            + "," + stats.getAllocated() + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all timings as JSON, an object per plugin with an object per
+     * phase.
+     *
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writeJson(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            out.write("{\n");
+            List<String> names = getPlugins();
+            for (int i = 0; i < names.size(); i++) {
+                out.write("  " + quote(names.get(i)) + ": {");
+                boolean first = true;
+                for (Map.Entry<Phase, Stats> entry : getStats(names.get(i)).entrySet()) {
+                    Stats stats = entry.getValue();
+                    out.write((first ? "\n" : ",\n") + "    " + quote(entry.getKey().getLabel()) + ": {"
+                            + "\"count\": " + stats.getCount()
+                            + ", \"totalMs\": " + millis(stats.getTotal())
+                            + ", \"p50Ms\": " + millis(stats.getPercentile(50))
+                            + ", \"p99Ms\": " + millis(stats.getPercentile(99))
+                            + ", \"maxMs\": " + millis(stats.getMax())
+                            + ", \"allocatedBytes\": " + stats.getAllocated() + "}");
+                    first = false;
+                }
+                out.write("\n  }" + (i < names.size() - 1 ? "," : "") + "\n");
+            }
+            out.write("}\n");
+        }
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds
+     * @return the duration in milliseconds, with three decimals
+     */
+    public static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    /**
+     * @param value a String
+     * @return the String as a JSON string literal
+     */
+    public static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+}
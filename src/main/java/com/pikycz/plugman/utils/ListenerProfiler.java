@@ -0,0 +1,183 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.event.Event;
+import cn.nukkit.event.HandlerList;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.plugin.RegisteredListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times event listeners per plugin, listener class and event type by
+ * swapping every registered listener for a {@link TimedRegisteredListener}
+ * while profiling. Stopping puts the original listeners back, so there is no
+ * cost at all while the profiler is off.
+ *
+ * Must be started and stopped on the main thread.
+ *
+ * @author PikyCZ
+ */
+public class ListenerProfiler {
+
+    private final Plugin owner;
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    private boolean running;
+
+    private long startedAt;
+
+    /**
+     * Recorded calls of one listener class of one plugin for one event type.
+     */
+    public static class Stats {
+
+        private final String plugin;
+
+        private final String listener;
+
+        private final String event;
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private long allocated;
+
+        private Stats(String plugin, String listener, String event) {
+            this.plugin = plugin;
+            this.listener = listener;
+            this.event = event;
+        }
+
+        void record(long nanos, long bytes) {
+            histogram.record(nanos);
+            allocated += bytes;
+        }
+
+        public String getPlugin() {
+            return plugin;
+        }
+
+        public String getListener() {
+            return listener;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        public long getTotal() {
+            return histogram.getTotal();
+        }
+
+        public long getPercentile(double percentile) {
+            return histogram.getPercentile(percentile);
+        }
+
+        /**
+         * @return the bytes allocated per call, 0 unless allocations were
+         * tracked
+         */
+        public long getAllocatedPerCall() {
+            long count = histogram.getCount();
+            return count == 0 ? 0 : allocated / count;
+        }
+
+    }
+
+    /**
+     * @param owner PlugMan, whose own listeners are left alone
+     */
+    public ListenerProfiler(Plugin owner) {
+        this.owner = owner;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the milliseconds since profiling started, or 0 if not running
+     */
+    public long getRunningMillis() {
+        return running ? System.currentTimeMillis() - startedAt : 0;
+    }
+
+    /**
+     * Wraps every registered listener and starts recording. Previous results
+     * are dropped.
+     *
+     * @param trackAllocations whether to also record allocations per call
+     * @return the number of listeners wrapped
+     */
+    public int start(boolean trackAllocations) {
+        if (running) {
+            return 0;
+        }
+        stats.clear();
+        running = true;
+        startedAt = System.currentTimeMillis();
+
+        int wrapped = 0;
+        for (HandlerList handlers : HandlerList.getHandlerLists()) {
+            for (RegisteredListener listener : handlers.getRegisteredListeners()) {
+                if (listener instanceof TimedRegisteredListener || listener.getPlugin() == owner) {
+                    continue;
+                }
+                handlers.unregister(listener);
+                handlers.register(new TimedRegisteredListener(listener, this, trackAllocations));
+                wrapped++;
+            }
+        }
+        return wrapped;
+    }
+
+    /**
+     * Puts the original listeners back. Results stay available until the
+     * next start.
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+
+        for (HandlerList handlers : HandlerList.getHandlerLists()) {
+            for (RegisteredListener listener : handlers.getRegisteredListeners()) {
+                if (listener instanceof TimedRegisteredListener) {
+                    handlers.unregister(listener);
+                    handlers.register(((TimedRegisteredListener) listener).getDelegate());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param plugin only include this plugin, or null for all
+     * @return the recorded stats, most total time first
+     */
+    public List<Stats> getStats(String plugin) {
+        List<Stats> list = new ArrayList<>();
+        for (Stats s : stats.values()) {
+            if (plugin == null || s.plugin.equalsIgnoreCase(plugin)) {
+                list.add(s);
+            }
+        }
+        list.sort((a, b) -> Long.compare(b.getTotal(), a.getTotal()));
+        return list;
+    }
+
+    Stats stats(RegisteredListener listener, Class<? extends Event> event) {
+        String plugin = listener.getPlugin().getName();
+        String listenerClass = listener.getListener().getClass().getName();
+        // Names only, so the results don't keep unloaded plugins alive.
+        return stats.computeIfAbsent(plugin + '\0' + listenerClass + '\0' + event.getName(),
+                k -> new Stats(plugin, listenerClass, event.getSimpleName()));
+    }
+
+}
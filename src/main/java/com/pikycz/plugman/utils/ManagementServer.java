@@ -0,0 +1,481 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.Server;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.utils.Logger;
+import com.pikycz.plugman.PlugMan;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Management endpoint on a loopback TCP port, for tools that drive PlugMan
+ * on many servers at once.
+ *
+ * The protocol is line based. A connection starts with {@code auth <token>},
+ * after which every line is a request {@code <id> <command> [args]} and gets
+ * a single line of JSON back carrying the same id:
+ * {@code {"id":"1","ok":true,"result":...}} or
+ * {@code {"id":"1","ok":false,"error":"..."}}. Requests can be pipelined;
+ * replies to reloads come once the reload is done, so they can overtake
+ * each other.
+ *
+ * Commands: {@code list}, {@code enable <a,b,c>}, {@code disable <a,b,c>},
+ * {@code reload <a,b,c>} and {@code timings [plugin]}.
+ *
+ * The sockets are served by one thread; requests from all connections are
+ * queued and run together in a single main thread task, however many
+ * arrived during the tick.
+ *
+ * @author PikyCZ
+ */
+public class ManagementServer {
+
+    private static final int MAX_LINE = 8192;
+
+    private static final int MAX_CONNECTIONS = 32;
+
+    private final PluginPipeline pipeline;
+
+    private final Logger logger;
+
+    private final int port;
+
+    private final byte[] token;
+
+    private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile boolean running;
+
+    private Selector selector;
+
+    private ServerSocketChannel server;
+
+    private Thread thread;
+
+    private static class Connection {
+
+        private final SocketChannel channel;
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+
+        private boolean authenticated;
+
+        private volatile boolean closing;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+    }
+
+    private static class Request {
+
+        private final Connection connection;
+
+        private final String id;
+
+        private final String command;
+
+        private final String args;
+
+        private Request(Connection connection, String id, String command, String args) {
+            this.connection = connection;
+            this.id = id;
+            this.command = command;
+            this.args = args;
+        }
+
+    }
+
+    /**
+     * @param pipeline the pipeline running reloads and the main thread task
+     * @param logger where to report to
+     * @param port the loopback port to listen on
+     * @param token the token clients have to send first
+     */
+    public ManagementServer(PluginPipeline pipeline, Logger logger, int port, String token) {
+        this.pipeline = pipeline;
+        this.logger = logger;
+        this.port = port;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Binds the port and starts the socket thread.
+     *
+     * @throws IOException if the port can't be bound
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+
+        running = true;
+        thread = new Thread(this::run, "PlugMan Management");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes the port and every connection. Queued requests are dropped.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        requests.clear();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Connection connection;
+                while ((connection = writable.poll()) != null) {
+                    SelectionKey key = connection.channel.keyFor(selector);
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("The management endpoint stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+            running = false;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        if (selector.keys().size() > MAX_CONNECTIONS) {
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        int read = connection.channel.read(buffer);
+        if (read < 0) {
+            close(key);
+            return;
+        }
+
+        boolean queued = false;
+        // Through Buffer, so a build on a newer JDK still runs on Java 8.
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b != '\n') {
+                if (connection.line.size() >= MAX_LINE) {
+                    reply(connection, null, false, LifecycleTimings.quote("line too long"));
+                    connection.closing = true;
+                    return;
+                }
+                connection.line.write(b);
+                continue;
+            }
+            String line = new String(connection.line.toByteArray(), StandardCharsets.UTF_8).trim();
+            connection.line.reset();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (!connection.authenticated) {
+                byte[] given = line.startsWith("auth ") ? line.substring(5).trim().getBytes(StandardCharsets.UTF_8) : new byte[0];
+                if (!MessageDigest.isEqual(given, token)) {
+                    reply(connection, null, false, LifecycleTimings.quote("unauthorized"));
+                    connection.closing = true;
+                    return;
+                }
+                connection.authenticated = true;
+                reply(connection, null, true, "null");
+                continue;
+            }
+
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 2) {
+                reply(connection, parts[0], false, LifecycleTimings.quote("expected <id> <command> [args]"));
+                continue;
+            }
+            requests.add(new Request(connection, parts[0], parts[1].toLowerCase(), parts.length > 2 ? parts[2].trim() : ""));
+            queued = true;
+        }
+
+        // One main thread task for everything queued until it runs.
+        if (queued && scheduled.compareAndSet(false, true)) {
+            pipeline.sync(() -> {
+                drain();
+                return null;
+            });
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer;
+        while ((buffer = connection.outbox.peek()) != null) {
+            connection.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            connection.outbox.poll();
+        }
+        if (connection.closing) {
+            close(key);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+
+    /**
+     * Runs every queued request. Main thread only.
+     */
+    private void drain() {
+        scheduled.set(false);
+        Request request;
+        while ((request = requests.poll()) != null) {
+            try {
+                execute(request);
+            } catch (RuntimeException e) {
+                reply(request.connection, request.id, false, LifecycleTimings.quote(String.valueOf(e.getMessage())));
+            }
+        }
+    }
+
+    private void execute(Request request) {
+        switch (request.command) {
+            case "list":
+                reply(request.connection, request.id, true, list());
+                break;
+            case "enable":
+            case "disable":
+                setEnabled(request, request.command.equals("enable"));
+                break;
+            case "reload":
+                reload(request);
+                break;
+            case "timings":
+                reply(request.connection, request.id, true, timings(request.args.isEmpty() ? null : request.args));
+                break;
+            default:
+                reply(request.connection, request.id, false, LifecycleTimings.quote("unknown command " + request.command));
+                break;
+        }
+    }
+
+    private String list() {
+        StateStore store = PlugMan.getInstance().getStateStore();
+        StringBuilder sb = new StringBuilder("[");
+        for (Plugin plugin : Server.getInstance().getPluginManager().getPlugins().values()) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":").append(LifecycleTimings.quote(plugin.getName()))
+                    .append(",\"version\":").append(LifecycleTimings.quote(String.valueOf(plugin.getDescription().getVersion())))
+                    .append(",\"enabled\":").append(plugin.isEnabled())
+                    .append(",\"generation\":").append(store != null ? store.getGeneration(plugin.getName()) : 0)
+                    .append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+    private void setEnabled(Request request, boolean enable) {
+        List<Plugin> plugins = resolve(request);
+        if (plugins == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (Plugin plugin : plugins) {
+            if (enable) {
+                PluginUtil.enable(plugin);
+            } else {
+                PluginUtil.disable(plugin);
+            }
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(LifecycleTimings.quote(plugin.getName())).append(':').append(plugin.isEnabled());
+        }
+        reply(request.connection, request.id, true, sb.append('}').toString());
+    }
+
+    private void reload(Request request) {
+        List<Plugin> plugins = resolve(request);
+        if (plugins == null) {
+            return;
+        }
+        CompletableFuture<?> future = plugins.size() == 1
+                ? pipeline.reload(Server.getInstance().getConsoleSender(), plugins.get(0))
+                : pipeline.reload(Server.getInstance().getConsoleSender(), plugins);
+        future.whenComplete((result, error) -> {
+            if (error == null) {
+                reply(request.connection, request.id, true, "null");
+            } else {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                reply(request.connection, request.id, false, LifecycleTimings.quote(String.valueOf(cause.getMessage())));
+            }
+        });
+    }
+
+    private String timings(String plugin) {
+        LifecycleTimings timings = PlugMan.getInstance().getTimings();
+        List<String> names = new ArrayList<>();
+        if (plugin != null) {
+            names.add(plugin);
+        } else {
+            names.addAll(timings.getPlugins());
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (String name : names) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(LifecycleTimings.quote(name)).append(":{");
+            boolean first = true;
+            for (Map.Entry<LifecycleTimings.Phase, LifecycleTimings.Stats> entry : timings.getStats(name).entrySet()) {
+                LifecycleTimings.Stats stats = entry.getValue();
+                sb.append(first ? "" : ",").append(LifecycleTimings.quote(entry.getKey().getLabel()))
+                        .append(":{\"count\":").append(stats.getCount())
+                        .append(",\"totalMs\":").append(LifecycleTimings.millis(stats.getTotal()))
+                        .append(",\"p99Ms\":").append(LifecycleTimings.millis(stats.getPercentile(99)))
+                        .append('}');
+                first = false;
+            }
+            sb.append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Resolves the comma separated plugin names of a request, replying with
+     * an error if one of them is unknown or PlugMan itself.
+     */
+    private List<Plugin> resolve(Request request) {
+        List<Plugin> plugins = new ArrayList<>();
+        for (String part : request.args.split(",")) {
+            String name = part.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            Plugin plugin = PluginUtil.getPluginByName(name);
+            if (plugin == null || plugin == PlugMan.getInstance()) {
+                reply(request.connection, request.id, false, LifecycleTimings.quote((plugin == null ? "unknown plugin " : "not allowed on ") + name));
+                return null;
+            }
+            if (!plugins.contains(plugin)) {
+                plugins.add(plugin);
+            }
+        }
+        if (plugins.isEmpty()) {
+            reply(request.connection, request.id, false, LifecycleTimings.quote("no plugin given"));
+            return null;
+        }
+        return plugins;
+    }
+
+    /**
+     * Queues a reply line for a connection, from any thread.
+     *
+     * @param value the JSON result, or the quoted error message
+     */
+    private void reply(Connection connection, String id, boolean ok, String value) {
+        String line = "{\"id\":" + (id != null ? LifecycleTimings.quote(id) : "null")
+                + ",\"ok\":" + ok
+                + (ok ? ",\"result\":" : ",\"error\":") + value + "}\n";
+        connection.outbox.add(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        writable.add(connection);
+        selector.wakeup();
+    }
+
+}
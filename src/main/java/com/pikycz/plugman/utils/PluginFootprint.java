@@ -0,0 +1,352 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.plugin.Plugin;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Measures what a plugin holds on to: the classes its classloader defined,
+ * roughly how much Metaspace they take, the threads running its code and an
+ * estimate of the heap retained by its instance and static fields.
+ *
+ * Metaspace can't be read per classloader from inside the JVM, so it is
+ * estimated from the size of the class files that were actually loaded. The
+ * retained heap is the sampled shallow size of everything reachable from the
+ * plugin without passing through objects of other plugins or of the server,
+ * so a plugin holding players or levels is not charged for them.
+ *
+ * Everything here reads live state without locking and may take a while;
+ * run it off the main thread. The retained heap walk then skips and counts
+ * whatever the plugin changes while it is read.
+ *
+ * @author PikyCZ
+ */
+public class PluginFootprint {
+
+    /**
+     * Metaspace taken per byte of class file, a rough average for
+     * typical plugin code.
+     */
+    private static final double METASPACE_PER_CLASS_BYTE = 1.5;
+
+    private static final Field CLASSES = findClasses();
+
+    private static final Field TARGET = findTarget();
+
+    private final String plugin;
+
+    private final int classes;
+
+    private final boolean exact;
+
+    private final long metaspace;
+
+    private final int threads;
+
+    private PluginFootprint(String plugin, int classes, boolean exact, long metaspace, int threads) {
+        this.plugin = plugin;
+        this.classes = classes;
+        this.exact = exact;
+        this.metaspace = metaspace;
+        this.threads = threads;
+    }
+
+    public String getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * @return the number of classes the plugin's classloader defined, or the
+     * number of classes in its jar when that can't be read
+     */
+    public int getClasses() {
+        return classes;
+    }
+
+    /**
+     * @return whether the class count was read from the classloader
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * @return the estimated Metaspace use in bytes
+     */
+    public long getMetaspace() {
+        return metaspace;
+    }
+
+    /**
+     * @return the number of threads running the plugin's code or using its
+     * classloader as their context classloader
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Measures the classes and threads of several plugins, largest first.
+     *
+     * @param plugins the plugins, copied on the main thread
+     * @return the footprints
+     */
+    public static List<PluginFootprint> measureAll(Collection<Plugin> plugins) {
+        Map<Thread, StackTraceElement[]> stacks = Thread.getAllStackTraces();
+        List<PluginFootprint> footprints = new ArrayList<>();
+        for (Plugin plugin : plugins) {
+            footprints.add(measure(plugin, stacks));
+        }
+        footprints.sort((a, b) -> Long.compare(b.metaspace, a.metaspace));
+        return footprints;
+    }
+
+    /**
+     * Measures the classes and threads of one plugin.
+     *
+     * @param plugin the plugin
+     * @param stacks the stacks of all live threads
+     * @return the footprint
+     */
+    public static PluginFootprint measure(Plugin plugin, Map<Thread, StackTraceElement[]> stacks) {
+        ClassLoader loader = plugin.getClass().getClassLoader();
+        Map<String, Long> sizes = classFileSizes(loader);
+
+        List<Class<?>> loaded = getLoadedClasses(loader);
+        Set<String> names = classNames(loaded, sizes);
+        long bytes = 0;
+        for (String name : names) {
+            Long size = sizes.get(name);
+            if (size != null) {
+                bytes += size;
+            }
+        }
+
+        int threads = 0;
+        for (Map.Entry<Thread, StackTraceElement[]> entry : stacks.entrySet()) {
+            if (runs(entry.getKey(), entry.getValue(), loader, names)) {
+                threads++;
+            }
+        }
+
+        return new PluginFootprint(plugin.getName(), names.size(), loaded != null, (long) (bytes * METASPACE_PER_CLASS_BYTE), threads);
+    }
+
+    /**
+     * Starts estimating the heap retained by a plugin, walking from its
+     * instance and the static fields of its classes. The walk never enters
+     * server objects, so it is run in one go off the main thread.
+     *
+     * @param plugin the plugin
+     * @param walker the walker, whose budget caps the walk
+     * @param sample the number of elements followed per collection
+     * @return the walk, whose result is the estimated size in bytes
+     */
+    public static HeapWalker.Walk<Long> estimateRetained(Plugin plugin, HeapWalker walker, int sample) {
+        ClassLoader loader = plugin.getClass().getClassLoader();
+
+        List<Object> roots = new ArrayList<>();
+        roots.add(plugin);
+        List<Class<?>> loaded = getLoadedClasses(loader);
+        if (loaded != null) {
+            roots.addAll(loaded);
+        }
+
+        return walker.measure(roots, value -> owned(value, plugin, loader), sample);
+    }
+
+    /**
+     * Tells whether the walk may enter an object: JDK objects and the
+     * plugin's own, but not classloaders, threads, other plugins or anything
+     * defined by another classloader, like the server's players and levels.
+     */
+    static boolean owned(Object value, Plugin plugin, ClassLoader loader) {
+        if (value instanceof ClassLoader || value instanceof Thread) {
+            return false;
+        }
+        if (value instanceof Plugin && value != plugin) {
+            return false;
+        }
+        if (value instanceof Class) {
+            return ((Class<?>) value).getClassLoader() == loader;
+        }
+        ClassLoader owner = value.getClass().getClassLoader();
+        return owner == null || owner == loader;
+    }
+
+    /**
+     * Tells whether a thread belongs to a plugin or is running its code right
+     * now.
+     *
+     * @param thread the thread
+     * @param stack the thread's stack
+     * @param loader the plugin's classloader
+     * @param names the names of the plugin's classes
+     * @return whether the thread runs the plugin's code
+     */
+    static boolean runs(Thread thread, StackTraceElement[] stack, ClassLoader loader, Set<String> names) {
+        return belongs(thread, loader) || executes(stack, names);
+    }
+
+    /**
+     * Tells whether a thread was started by a plugin: its class, its runnable
+     * or its context classloader come from the plugin's classloader.
+     *
+     * @param thread the thread
+     * @param loader the plugin's classloader
+     * @return whether the thread belongs to the plugin
+     */
+    static boolean belongs(Thread thread, ClassLoader loader) {
+        if (thread.getContextClassLoader() == loader || thread.getClass().getClassLoader() == loader) {
+            return true;
+        }
+        if (TARGET != null) {
+            try {
+                Object target = TARGET.get(thread);
+                if (target != null && target.getClass().getClassLoader() == loader) {
+                    return true;
+                }
+            } catch (IllegalAccessException | RuntimeException e) {
+                // Ignore, the other checks still apply.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a stack has a frame of one of the given classes.
+     *
+     * @param stack the stack
+     * @param names the class names
+     * @return whether one of the classes is on the stack
+     */
+    static boolean executes(StackTraceElement[] stack, Set<String> names) {
+        for (StackTraceElement frame : stack) {
+            if (names.contains(frame.getClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the names of the classes a classloader defined, or of all
+     * classes in its jars if those can't be read.
+     *
+     * @param loader the classloader
+     * @return the class names
+     */
+    static Set<String> classNames(ClassLoader loader) {
+        return classNames(getLoadedClasses(loader), classFileSizes(loader));
+    }
+
+    private static Set<String> classNames(List<Class<?>> loaded, Map<String, Long> sizes) {
+        if (loaded == null) {
+            // No access to the loaded classes, assume the whole jar.
+            return new HashSet<>(sizes.keySet());
+        }
+        Set<String> names = new HashSet<>();
+        for (Class<?> clazz : loaded) {
+            names.add(clazz.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Reads the classes a classloader defined.
+     *
+     * @param loader the classloader
+     * @return a copy of the classes, or null if they can't be read on this JVM
+     */
+    public static List<Class<?>> getLoadedClasses(ClassLoader loader) {
+        if (CLASSES == null || loader == null) {
+            return null;
+        }
+        try {
+            Object classes = CLASSES.get(loader);
+            if (!(classes instanceof Collection)) {
+                return null;
+            }
+            Object[] copy;
+            // Defining a class adds to the list while holding its lock.
+            synchronized (classes) {
+                copy = ((Collection<?>) classes).toArray();
+            }
+            List<Class<?>> result = new ArrayList<>(copy.length);
+            for (Object clazz : copy) {
+                result.add((Class<?>) clazz);
+            }
+            return result;
+        } catch (IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the uncompressed class file sizes from the jars of a classloader.
+     *
+     * @return the sizes by class name
+     */
+    private static Map<String, Long> classFileSizes(ClassLoader loader) {
+        if (!(loader instanceof URLClassLoader)) {
+            return Collections.emptyMap();
+        }
+        Map<String, Long> sizes = new HashMap<>();
+        for (URL url : ((URLClassLoader) loader).getURLs()) {
+            if (!"file".equals(url.getProtocol())) {
+                continue;
+            }
+            try (JarFile jar = new JarFile(new File(url.toURI()))) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (name.endsWith(".class") && !name.startsWith("META-INF/") && entry.getSize() > 0) {
+                        sizes.put(name.substring(0, name.length() - 6).replace('/', '.'), entry.getSize());
+                    }
+                }
+            } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+                // Not a jar, nothing to count.
+            }
+        }
+        return sizes;
+    }
+
+    private static Field findTarget() {
+        try {
+            Field field = Thread.class.getDeclaredField("target");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            // Not accessible on this JVM.
+            return null;
+        }
+    }
+
+    private static Field findClasses() {
+        try {
+            Field field = ClassLoader.class.getDeclaredField("classes");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            // Not accessible on this JVM.
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.plugin.Plugin;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Case-insensitive index of plugin names and of the commands and aliases
+ * plugins declare in their descriptor.
+ *
+ * Exact lookups are hash lookups; prefix lookups walk a sorted sub-range.
+ *
+ * @author PikyCZ
+ */
+public class PluginIndex {
+
+    private final Map<String, Plugin> byName = new HashMap<>();
+
+    private final TreeMap<String, String> names = new TreeMap<>();
+
+    private final TreeMap<String, Set<String>> byCommand = new TreeMap<>();
+
+    /**
+     * Drops everything and indexes the given plugins.
+     *
+     * @param plugins the plugins
+     */
+    public synchronized void rebuild(Collection<Plugin> plugins) {
+        byName.clear();
+        names.clear();
+        byCommand.clear();
+        for (Plugin plugin : plugins) {
+            add(plugin);
+        }
+    }
+
+    /**
+     * @return the number of indexed plugins
+     */
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    /**
+     * Indexes a plugin, replacing an indexed plugin of the same name.
+     *
+     * @param plugin the plugin
+     */
+    public synchronized void add(Plugin plugin) {
+        String key = plugin.getName().toLowerCase();
+        Plugin old = byName.put(key, plugin);
+        if (old != null) {
+            unindexCommands(old);
+        }
+        names.put(key, plugin.getName());
+        for (String command : getCommands(plugin)) {
+            byCommand.computeIfAbsent(command, k -> new LinkedHashSet<>()).add(plugin.getName());
+        }
+    }
+
+    /**
+     * Drops a plugin from the index.
+     *
+     * @param plugin the plugin
+     */
+    public synchronized void remove(Plugin plugin) {
+        String key = plugin.getName().toLowerCase();
+        if (byName.get(key) == plugin) {
+            byName.remove(key);
+            names.remove(key);
+            unindexCommands(plugin);
+        }
+    }
+
+    /**
+     * @param name the plugin's name, in any case
+     * @return the plugin, or null
+     */
+    public synchronized Plugin get(String name) {
+        return byName.get(name.toLowerCase());
+    }
+
+    /**
+     * @param command the command or alias, in any case
+     * @return the names of the plugins declaring it
+     */
+    public synchronized List<String> findByCommand(String command) {
+        Set<String> owners = byCommand.get(command.toLowerCase());
+        return owners != null ? new ArrayList<>(owners) : Collections.<String>emptyList();
+    }
+
+    /**
+     * @param prefix the start of a plugin name, in any case
+     * @return the names of the plugins starting with it
+     */
+    public synchronized List<String> completeName(String prefix) {
+        return new ArrayList<>(prefixed(names, prefix.toLowerCase()).values());
+    }
+
+    /**
+     * @param prefix the start of a command or alias, in any case
+     * @return the declared commands and aliases starting with it
+     */
+    public synchronized List<String> completeCommand(String prefix) {
+        return new ArrayList<>(prefixed(byCommand, prefix.toLowerCase()).keySet());
+    }
+
+    private static <V> Map<String, V> prefixed(TreeMap<String, V> map, String prefix) {
+        if (prefix.isEmpty()) {
+            return map;
+        }
+        return map.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private void unindexCommands(Plugin plugin) {
+        for (String command : getCommands(plugin)) {
+            Set<String> owners = byCommand.get(command);
+            if (owners != null) {
+                owners.remove(plugin.getName());
+                if (owners.isEmpty()) {
+                    byCommand.remove(command);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the commands and aliases a plugin declares in its descriptor.
+     *
+     * @param plugin the plugin
+     * @return the lowercase commands and aliases
+     */
+    public static Set<String> getCommands(Plugin plugin) {
+        Set<String> commands = new LinkedHashSet<>();
+        if (plugin.getDescription() == null || plugin.getDescription().getCommands() == null) {
+            return commands;
+        }
+
+        for (Map.Entry<String, Object> command : plugin.getDescription().getCommands().entrySet()) {
+            commands.add(command.getKey().toLowerCase());
+
+            if (!(command.getValue() instanceof Map)) {
+                continue;
+            }
+
+            Object aliases = ((Map<?, ?>) command.getValue()).get("aliases");
+            if (aliases instanceof String) {
+                commands.add(((String) aliases).toLowerCase());
+            } else if (aliases instanceof Collection) {
+                for (Object alias : (Collection<?>) aliases) {
+                    if (alias != null) {
+                        commands.add(alias.toString().toLowerCase());
+                    }
+                }
+            }
+        }
+        return commands;
+    }
+
+}
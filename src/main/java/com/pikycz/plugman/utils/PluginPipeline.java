@@ -0,0 +1,561 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.Server;
+import cn.nukkit.command.CommandSender;
+import cn.nukkit.plugin.Plugin;
+import com.pikycz.plugman.PlugMan;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs load, unload and reload as a chain of stages. Disk access and jar
+ * parsing happen on a worker thread; everything that touches server state is
+ * handed back to the main thread through the scheduler, one stage per tick.
+ *
+ * @author PikyCZ
+ */
+public class PluginPipeline {
+
+    private final Plugin owner;
+
+    private final String prefix;
+
+    private final ExecutorService worker;
+
+    private final ForkJoinPool preparePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final Set<String> busy = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ClassPrewarmer prewarmer;
+
+    private final long prewarmBudget;
+
+    private final long walkBudget;
+
+    /**
+     * @param owner the plugin scheduling the main thread stages
+     * @param prefix the prefix for messages sent to command senders
+     * @param prewarmer the prewarmer run between load and enable, or null to
+     * skip prewarming
+     * @param prewarmBudgetMillis the milliseconds per tick prewarming may take
+     * when it has to run on the main thread
+     * @param walkBudgetMillis the milliseconds per tick a heap walk may take
+     */
+    public PluginPipeline(Plugin owner, String prefix, ClassPrewarmer prewarmer, long prewarmBudgetMillis, long walkBudgetMillis) {
+        this.owner = owner;
+        this.prefix = prefix;
+        this.prewarmer = prewarmer;
+        this.prewarmBudget = Math.max(1, prewarmBudgetMillis) * 1000000L;
+        this.walkBudget = Math.max(1, walkBudgetMillis) * 1000000L;
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "PlugMan Worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the worker thread. Stages that have not started yet are dropped.
+     */
+    public void shutdown() {
+        worker.shutdownNow();
+        preparePool.shutdownNow();
+    }
+
+    /**
+     * Runs a task on the worker thread.
+     *
+     * @param task the task
+     * @return a future completed with the task's result
+     */
+    public <T> CompletableFuture<T> async(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        worker.execute(() -> complete(future, task));
+        return future;
+    }
+
+    /**
+     * Runs a task on the main thread during the next tick.
+     *
+     * @param task the task
+     * @return a future completed with the task's result
+     */
+    public <T> CompletableFuture<T> sync(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Server.getInstance().getScheduler().scheduleTask(owner, () -> complete(future, task));
+        return future;
+    }
+
+    /**
+     * Runs a heap walk on the main thread within the budget of each tick, so
+     * it doesn't read server state while the main thread changes it.
+     *
+     * @param walk the walk
+     * @return a future completed with the walk's result
+     */
+    public <T> CompletableFuture<T> walk(HeapWalker.Walk<T> walk) {
+        return sync(() -> walk.step(walkBudget))
+                .thenCompose(done -> done ? CompletableFuture.completedFuture(walk.getResult()) : walk(walk));
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, Callable<T> task) {
+        try {
+            future.complete(task.call());
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Loads and enables a plugin.
+     *
+     * @param sender who to report progress to
+     * @param name the plugin's name
+     * @return a future completed with the enabled plugin
+     */
+    public CompletableFuture<Plugin> load(CommandSender sender, String name) {
+        if (!busy.add(name.toLowerCase())) {
+            return rejected(sender, name);
+        }
+
+        sender.sendMessage(prefix + " §7Loading " + name + "...");
+
+        CompletableFuture<Plugin> future = locate(name)
+                .thenCompose(this::loadAndEnable);
+
+        return report(sender, name, future, "loaded");
+    }
+
+    /**
+     * Disables and unloads a plugin.
+     *
+     * @param sender who to report progress to
+     * @param plugin the plugin
+     * @return a future completed once the plugin is unloaded
+     */
+    public CompletableFuture<Plugin> unload(CommandSender sender, Plugin plugin) {
+        String name = plugin.getName();
+        if (!busy.add(name.toLowerCase())) {
+            return rejected(sender, name);
+        }
+
+        sender.sendMessage(prefix + " §7Unloading " + name + "...");
+
+        CompletableFuture<Plugin> future = sync(() -> {
+            PluginUtil.unload(plugin);
+            return plugin;
+        });
+
+        return report(sender, name, future, "unloaded");
+    }
+
+    /**
+     * Reloads a plugin. The jar is located before the running plugin is
+     * unloaded, so a missing jar leaves the plugin untouched. With shadow
+     * reloads the new jar is loaded next to the running plugin, which is
+     * only replaced once the new one is ready, and restored if it fails to
+     * enable.
+     *
+     * @param sender who to report progress to
+     * @param plugin the plugin
+     * @return a future completed with the new plugin
+     */
+    public CompletableFuture<Plugin> reload(CommandSender sender, Plugin plugin) {
+        String name = plugin.getName();
+        if (!busy.add(name.toLowerCase())) {
+            return rejected(sender, name);
+        }
+
+        sender.sendMessage(prefix + " §7Reloading " + name + "...");
+
+        CompletableFuture<Plugin> future;
+        if (PluginUtil.canShadowReload()) {
+            // The running plugin keeps serving until the new one is loaded and prewarmed, then both are swapped in one tick.
+            future = locate(name)
+                    .thenCompose(file -> async(() -> {
+                        PluginUtil.probe(file, plugin);
+                        return file;
+                    }))
+                    .thenCompose(file -> sync(() -> PluginUtil.instantiate(plugin, file))
+                            .thenCompose(candidate -> prewarm(candidate, file)))
+                    .thenCompose(candidate -> sync(() -> PluginUtil.swap(plugin, candidate)));
+        } else {
+            future = locate(name)
+                    .thenCompose(file -> sync(() -> {
+                        PluginUtil.unload(plugin);
+                        return file;
+                    }))
+                    .thenCompose(this::loadAndEnable);
+        }
+
+        return report(sender, name, future, "reloaded");
+    }
+
+    /**
+     * Disables and unloads several plugins in one batch.
+     *
+     * @param sender who to report progress to
+     * @param plugins the plugins
+     * @return a future completed once the plugins are unloaded
+     */
+    public CompletableFuture<List<Plugin>> unload(CommandSender sender, List<Plugin> plugins) {
+        String names = names(plugins);
+        if (!claim(plugins)) {
+            return rejected(sender, names);
+        }
+
+        sender.sendMessage(prefix + " §7Unloading " + names + "...");
+
+        CompletableFuture<List<Plugin>> future = sync(() -> {
+            PluginUtil.unload(plugins);
+            return plugins;
+        });
+
+        return report(sender, names, future, "unloaded", plugins);
+    }
+
+    /**
+     * Reloads several plugins in one batch: their jars are located and read
+     * on the worker thread, then they are unloaded together and loaded again
+     * dependencies first on the main thread. Plugins without a jar are left
+     * untouched and reported.
+     *
+     * @param sender who to report progress to
+     * @param plugins the plugins
+     * @return a future completed with the plugins that were loaded again
+     */
+    public CompletableFuture<List<Plugin>> reload(CommandSender sender, List<Plugin> plugins) {
+        String names = names(plugins);
+        if (!claim(plugins)) {
+            return rejected(sender, names);
+        }
+
+        sender.sendMessage(prefix + " §7Reloading " + names + "...");
+
+        List<String> problems = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<List<Plugin>> future = async(() -> {
+            Map<Plugin, File> files = PluginUtil.locate(plugins, problems);
+            for (File file : files.values()) {
+                PluginUtil.preload(file);
+            }
+            return files;
+        }).thenCompose(files -> sync(() -> {
+            DependencyGraph graph = DependencyGraph.build(files.keySet());
+            Map<Plugin, File> loaded = new LinkedHashMap<>();
+
+            // Disable one by one, sweep the listeners and commands once, then load one by one.
+            List<Plugin> disabled = new ArrayList<>();
+            List<TickBudgetExecutor.Item> disabling = new ArrayList<>();
+            for (Plugin plugin : graph.getReverseOrder()) {
+                disabling.add(new TickBudgetExecutor.Item("Disabling " + plugin.getName(), disabling.size(), () -> {
+                    if (plugin.isEnabled()) {
+                        PluginUtil.disable(plugin, false);
+                        disabled.add(plugin);
+                    }
+                }));
+            }
+
+            // Once unloading started the plugins only exist again after loading, so these run as a whole.
+            List<TickBudgetExecutor.Item> swapping = new ArrayList<>();
+            swapping.add(new TickBudgetExecutor.Item("Unloading", swapping.size(), () -> PluginUtil.unload(files.keySet())));
+            for (Plugin plugin : graph.getOrder()) {
+                File file = files.get(plugin);
+                swapping.add(new TickBudgetExecutor.Item("Loading " + plugin.getName(), swapping.size(), () -> {
+                    Plugin target = PluginUtil.loadPlugin(file);
+                    if (target == null) {
+                        problems.add("Could not load " + file.getName() + ".");
+                    } else {
+                        loaded.put(target, file);
+                    }
+                }));
+            }
+
+            return executor().submit("Disabling " + names, sender, disabling).getFuture()
+                    .thenCompose(job -> {
+                        if (job.isCancelled()) {
+                            // Nothing was unloaded yet, put back what was running.
+                            for (Plugin plugin : graph.getOrder()) {
+                                if (disabled.contains(plugin)) {
+                                    PluginUtil.enable(plugin);
+                                }
+                            }
+                            throw new IllegalStateException("cancelled");
+                        }
+                        return executor().submit("Unloading " + names, sender, swapping, false).getFuture();
+                    })
+                    .thenApply(job -> loaded);
+        }).thenCompose(stage -> stage)).thenCompose(loaded -> {
+            CompletableFuture<Plugin> prewarmed = CompletableFuture.completedFuture(null);
+            for (Map.Entry<Plugin, File> entry : loaded.entrySet()) {
+                prewarmed = prewarmed.thenCompose(previous -> prewarm(entry.getKey(), entry.getValue()));
+            }
+            return prewarmed.thenApply(last -> (List<Plugin>) new ArrayList<>(loaded.keySet()));
+        }).thenCompose(loaded -> sync(() -> {
+            List<TickBudgetExecutor.Item> items = new ArrayList<>();
+            for (Plugin target : loaded) {
+                items.add(new TickBudgetExecutor.Item("Enabling " + target.getName(), items.size(), () -> PluginUtil.enable(target)));
+            }
+            // The plugins are loaded already, stopping now would leave them loaded but disabled.
+            return executor().submit("Enabling " + names, sender, items, false).getFuture()
+                    .thenApply(job -> {
+                        for (String problem : problems) {
+                            sender.sendMessage(prefix + " §c" + problem);
+                        }
+                        return loaded;
+                    });
+        }).thenCompose(stage -> stage));
+
+        return report(sender, names, future, "reloaded", plugins);
+    }
+
+    /**
+     * Enables every disabled plugin. The dependency order is computed and
+     * independent groups of plugins are prepared in parallel off the main
+     * thread, see {@link #prepare}; the plugins are then enabled on the main
+     * thread, dependencies first, within the tick budget.
+     *
+     * @param sender who to report progress to
+     * @return a future completed with the number of plugins enabled
+     */
+    public CompletableFuture<Integer> enableAll(CommandSender sender) {
+        List<Plugin> plugins = new ArrayList<>(Server.getInstance().getPluginManager().getPlugins().values());
+
+        sender.sendMessage(prefix + " §7Enabling all plugins...");
+
+        CompletableFuture<Integer> future = async(() -> {
+            DependencyGraph graph = DependencyGraph.build(plugins);
+            prepare(graph);
+            return graph;
+        }).thenCompose(graph -> sync(() -> {
+            for (String problem : graph.getProblems()) {
+                sender.sendMessage(prefix + " §c" + problem);
+            }
+            List<TickBudgetExecutor.Item> items = new ArrayList<>();
+            for (Plugin plugin : graph.getOrder()) {
+                if (!plugin.isEnabled() && !graph.isBlocked(plugin)) {
+                    items.add(new TickBudgetExecutor.Item(plugin.getName(), items.size(), () -> PluginUtil.enable(plugin)));
+                }
+            }
+            return executor().submit("Enabling all plugins", sender, items).getFuture();
+        })).thenCompose(job -> job.thenApply(TickBudgetExecutor.Job::getDone));
+
+        return future.whenComplete((enabled, error) -> {
+            if (error != null) {
+                sync(() -> {
+                    sender.sendMessage(prefix + " §cEnabling all plugins failed: " + error.getMessage());
+                    return null;
+                });
+            }
+        });
+    }
+
+    /**
+     * Disables every plugin except PlugMan, dependents first, within the tick
+     * budget. Must be called on the main thread.
+     *
+     * @param sender who to report progress to
+     * @return the job
+     */
+    public TickBudgetExecutor.Job disableAll(CommandSender sender) {
+        DependencyGraph graph = DependencyGraph.build(new ArrayList<>(Server.getInstance().getPluginManager().getPlugins().values()));
+        List<TickBudgetExecutor.Item> items = new ArrayList<>();
+        for (Plugin plugin : graph.getReverseOrder()) {
+            if (plugin != owner && plugin.isEnabled()) {
+                items.add(new TickBudgetExecutor.Item(plugin.getName(), items.size(), () -> PluginUtil.disable(plugin)));
+            }
+        }
+        return executor().submit("Disabling all plugins", sender, items);
+    }
+
+    private static TickBudgetExecutor executor() {
+        return PlugMan.getInstance().getExecutor();
+    }
+
+    /**
+     * Prepares the disabled plugins of a graph for their enable, one task per
+     * independent group of plugins. With prewarming on, the classes of
+     * plugins whose classloader takes concurrent loads are loaded and linked
+     * here; the jars of the others are only read ahead into the page cache.
+     */
+    private void prepare(DependencyGraph graph) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (List<Plugin> component : graph.getComponents()) {
+            tasks.add(preparePool.submit(() -> {
+                for (Plugin plugin : component) {
+                    File file = plugin.isEnabled() ? null : PluginUtil.getPluginFile(plugin);
+                    if (file == null) {
+                        continue;
+                    }
+                    try {
+                        if (!prewarmHere(plugin, file)) {
+                            PluginUtil.preload(file);
+                        }
+                    } catch (IOException e) {
+                        // Only a warm-up, the enable will report real problems.
+                    }
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    /**
+     * Loads and links the classes of a plugin on the calling thread, if
+     * prewarming is on and the plugin's classloader takes concurrent loads.
+     *
+     * @return whether the classes were loaded
+     */
+    private boolean prewarmHere(Plugin plugin, File file) throws IOException {
+        if (prewarmer == null) {
+            return false;
+        }
+        ClassPrewarmer.Session session = prewarmer.start(plugin.getClass().getClassLoader(), file);
+        if (!session.isParallelCapable()) {
+            return false;
+        }
+        session.step(Long.MAX_VALUE);
+        PlugMan.getInstance().getTimings().record(plugin.getName(), LifecycleTimings.Phase.PREWARM, session.getNanos());
+        return true;
+    }
+
+    private CompletableFuture<File> locate(String name) {
+        return async(() -> {
+            LifecycleTimings.Span span = PlugMan.getInstance().getTimings().start(name, LifecycleTimings.Phase.SCAN);
+            File file = PluginUtil.findPluginFile(name);
+            if (file == null) {
+                throw new IllegalStateException("No plugin jar found for " + name + ".");
+            }
+            PluginUtil.preload(file);
+            span.stop();
+            return file;
+        });
+    }
+
+    private CompletableFuture<Plugin> loadAndEnable(File file) {
+        return sync(() -> {
+            Plugin target = PluginUtil.loadPlugin(file);
+            if (target == null) {
+                throw new IllegalStateException("Could not load " + file.getName() + ".");
+            }
+            return target;
+        }).thenCompose(target -> prewarm(target, file)).thenCompose(target -> sync(() -> {
+            PluginUtil.enable(target);
+            return target;
+        }));
+    }
+
+    /**
+     * Loads and links the classes of a loaded plugin before it is enabled.
+     * Runs on the worker thread if the plugin's classloader allows concurrent
+     * loads, otherwise on the main thread within the budget of each tick. A
+     * failed prewarm never fails the load.
+     *
+     * @return a future completed with the plugin once prewarming is done
+     */
+    private CompletableFuture<Plugin> prewarm(Plugin plugin, File file) {
+        if (prewarmer == null) {
+            return CompletableFuture.completedFuture(plugin);
+        }
+
+        ClassLoader loader = plugin.getClass().getClassLoader();
+        return async(() -> prewarmer.start(loader, file))
+                .thenCompose(session -> (session.isParallelCapable()
+                        ? async(() -> session.step(Long.MAX_VALUE))
+                        : prewarmOnMainThread(session))
+                        .thenApply(done -> {
+                            PlugMan.getInstance().getTimings().record(plugin.getName(), LifecycleTimings.Phase.PREWARM, session.getNanos());
+                            return plugin;
+                        }))
+                .handle((result, error) -> plugin);
+    }
+
+    private CompletableFuture<Boolean> prewarmOnMainThread(ClassPrewarmer.Session session) {
+        return sync(() -> session.step(prewarmBudget))
+                .thenCompose(done -> done ? CompletableFuture.completedFuture(true) : prewarmOnMainThread(session));
+    }
+
+    /**
+     * Marks all plugins as busy, or none if one of them already is.
+     */
+    private boolean claim(List<Plugin> plugins) {
+        List<String> claimed = new ArrayList<>();
+        for (Plugin plugin : plugins) {
+            String key = plugin.getName().toLowerCase();
+            if (!busy.add(key)) {
+                busy.removeAll(claimed);
+                return false;
+            }
+            claimed.add(key);
+        }
+        return true;
+    }
+
+    private static String names(List<Plugin> plugins) {
+        List<String> names = new ArrayList<>();
+        for (Plugin plugin : plugins) {
+            names.add(plugin.getName());
+        }
+        return String.join(", ", names);
+    }
+
+    private <T> CompletableFuture<T> rejected(CommandSender sender, String name) {
+        sender.sendMessage(prefix + " §c" + name + " is already being processed.");
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException(name + " is already being processed."));
+        return future;
+    }
+
+    private CompletableFuture<Plugin> report(CommandSender sender, String name, CompletableFuture<Plugin> future, String action) {
+        return report(sender, name, future, action, Collections.<Plugin>emptyList());
+    }
+
+    /**
+     * Reports the outcome of an operation and releases the plugins it held.
+     *
+     * @param plugins the plugins to release, or empty to release the name
+     */
+    private <T> CompletableFuture<T> report(CommandSender sender, String name, CompletableFuture<T> future, String action, List<Plugin> plugins) {
+        return future.whenComplete((result, error) -> {
+            if (plugins.isEmpty()) {
+                busy.remove(name.toLowerCase());
+            }
+            for (Plugin plugin : plugins) {
+                busy.remove(plugin.getName().toLowerCase());
+            }
+
+            String message;
+            if (error == null) {
+                message = prefix + " §9" + name + " has been " + action + ".";
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                message = prefix + " §c" + name + " could not be " + action + ": " + cause.getMessage();
+            }
+
+            if (Server.getInstance().isPrimaryThread()) {
+                sender.sendMessage(message);
+            } else {
+                sync(() -> {
+                    sender.sendMessage(message);
+                    return null;
+                });
+            }
+        });
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.utils.Logger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Stops what an unloaded plugin left running: the executors it created and
+ * the threads it started. Both keep burning CPU after an unload and pin the
+ * plugin's classloader.
+ *
+ * Executors are found on the main thread by walking from the plugin instance
+ * and the static fields of its classes, without entering server objects or
+ * other plugins, the same way the memory report does. Every executor found
+ * that way is taken as the plugin's and shut down, unless its threads come
+ * from a factory of the server or another plugin, which means it was handed
+ * to the plugin. Threads the plugin started are interrupted and then joined
+ * up to a timeout; the ones still alive after that are reported. Threads the
+ * plugin didn't start, like the server's async workers, are never
+ * interrupted, only reported if they are still in the plugin's code after
+ * the timeout. Stopping runs on the reaper's own threads, as joining may
+ * take a while.
+ *
+ * @author PikyCZ
+ */
+public class PluginReaper {
+
+    private static final long POLL_MILLIS = 50;
+
+    private final Logger logger;
+
+    private final long joinMillis;
+
+    private final HeapWalker walker;
+
+    private final Thread mainThread;
+
+    private final ExecutorService stopper = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "PlugMan Reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Must be created on the main thread, which is never interrupted.
+     *
+     * @param logger where to report to
+     * @param joinMillis how long to wait for the threads of a plugin to stop
+     * @param walker the walker used to find the plugin's executors
+     */
+    public PluginReaper(Logger logger, long joinMillis, HeapWalker walker) {
+        this.logger = logger;
+        this.joinMillis = joinMillis;
+        this.walker = walker;
+        this.mainThread = Thread.currentThread();
+    }
+
+    /**
+     * Stops the reaper's threads. Plugins still being reaped are left as they
+     * are.
+     */
+    public void shutdown() {
+        stopper.shutdownNow();
+    }
+
+    /**
+     * Shuts down the executors and stops the threads of an unloaded plugin on
+     * the reaper's own threads.
+     *
+     * @param plugin the plugin, already disabled and removed from the server
+     * @param replacement the classloader of the plugin that replaced it on a
+     * reload, or null; frames of its classes are not taken for the old ones
+     * @param found the executors found by {@link #findExecutors}
+     * @return a future completed with the number of threads that did not
+     * stop
+     */
+    public CompletableFuture<Integer> reap(Plugin plugin, ClassLoader replacement, List<Object> found) {
+        return CompletableFuture.supplyAsync(() -> stop(plugin, replacement, found), stopper);
+    }
+
+    private int stop(Plugin plugin, ClassLoader replacement, List<Object> found) {
+        ClassLoader loader = plugin.getClass().getClassLoader();
+
+        int executors = 0;
+        for (Object executor : found) {
+            try {
+                ((ExecutorService) executor).shutdownNow();
+                executors++;
+            } catch (RuntimeException e) {
+                logger.warning("Could not shut down an executor of " + plugin.getName() + ": " + e);
+            }
+        }
+
+        // Stack frames only carry class names, so drop the names the new instance uses as well.
+        Set<String> names = PluginFootprint.classNames(loader);
+        if (replacement != null && replacement != loader) {
+            names.removeAll(PluginFootprint.classNames(replacement));
+        }
+
+        // Threads the plugin started have to die; threads of the server or
+        // other plugins that happen to run its code are only watched.
+        List<Thread> owned = new ArrayList<>();
+        List<Thread> borrowed = new ArrayList<>();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            Thread thread = entry.getKey();
+            if (thread == mainThread || thread == Thread.currentThread()) {
+                continue;
+            }
+            if (PluginFootprint.belongs(thread, loader)) {
+                owned.add(thread);
+            } else if (PluginFootprint.executes(entry.getValue(), names)) {
+                borrowed.add(thread);
+            }
+        }
+        for (Thread thread : owned) {
+            thread.interrupt();
+        }
+
+        long deadline = System.currentTimeMillis() + joinMillis;
+        List<Thread> alive = new ArrayList<>();
+        List<Thread> stuck = new ArrayList<>();
+        try {
+            for (Thread thread : owned) {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+                if (thread.isAlive()) {
+                    alive.add(thread);
+                }
+            }
+            for (Thread thread : borrowed) {
+                while (PluginFootprint.executes(thread.getStackTrace(), names) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(POLL_MILLIS);
+                }
+                if (PluginFootprint.executes(thread.getStackTrace(), names)) {
+                    stuck.add(thread);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return owned.size();
+        }
+
+        int stopped = owned.size() - alive.size();
+        if (executors > 0 || stopped > 0) {
+            logger.debug("Stopped " + stopped + " threads and " + executors + " executors of " + plugin.getName() + ".");
+        }
+        for (Thread thread : alive) {
+            StackTraceElement[] stack = thread.getStackTrace();
+            logger.warning("Thread " + thread.getName() + " of " + plugin.getName() + " did not stop within " + joinMillis + "ms"
+                    + (stack.length > 0 ? ", at " + stack[0] : "") + ".");
+        }
+        for (Thread thread : stuck) {
+            logger.warning("Thread " + thread.getName() + " is still running code of the unloaded " + plugin.getName() + " after " + joinMillis
+                    + "ms, it was left alone as it does not belong to the plugin.");
+        }
+        return alive.size();
+    }
+
+    /**
+     * Starts looking for the executors an unloaded plugin created. The walk
+     * has to run on the main thread, see {@link PluginPipeline#walk}.
+     *
+     * @param plugin the plugin
+     * @return the walk, whose result is the executors
+     */
+    public HeapWalker.Walk<List<Object>> findExecutors(Plugin plugin) {
+        ClassLoader loader = plugin.getClass().getClassLoader();
+        List<Object> roots = new ArrayList<>();
+        roots.add(plugin);
+        List<Class<?>> loaded = PluginFootprint.getLoadedClasses(loader);
+        if (loaded != null) {
+            roots.addAll(loaded);
+        }
+        return walker.findAll(roots, value -> PluginFootprint.owned(value, plugin, loader),
+                value -> value instanceof ExecutorService && createdBy((ExecutorService) value, loader));
+    }
+
+    /**
+     * Tells whether an executor found inside the plugin belongs to it. It
+     * does unless its threads come from a factory of the server or another
+     * plugin, which means it was handed to the plugin; executors on the JDK's
+     * default thread factory are the plugin's, as nothing outside the plugin
+     * leads to them. The common pool is never the plugin's.
+     */
+    static boolean createdBy(ExecutorService executor, ClassLoader loader) {
+        if (executor.getClass().getClassLoader() == loader) {
+            return true;
+        }
+        if (executor == ForkJoinPool.commonPool()) {
+            return false;
+        }
+        Object factory = null;
+        if (executor instanceof ThreadPoolExecutor) {
+            factory = ((ThreadPoolExecutor) executor).getThreadFactory();
+        } else if (executor instanceof ForkJoinPool) {
+            factory = ((ForkJoinPool) executor).getFactory();
+        }
+        if (factory == null) {
+            return true;
+        }
+        ClassLoader factoryLoader = factory.getClass().getClassLoader();
+        return factoryLoader == null || factoryLoader == loader;
+    }
+
+}
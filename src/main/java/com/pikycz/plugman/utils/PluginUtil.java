@@ -2,7 +2,6 @@ package com.pikycz.plugman.utils;
 
 import cn.nukkit.Server;
 import cn.nukkit.command.Command;
-import cn.nukkit.command.PluginCommand;
 import cn.nukkit.command.SimpleCommandMap;
 import cn.nukkit.event.Event;
 import cn.nukkit.plugin.*;
@@ -11,9 +10,14 @@ import com.google.common.base.Joiner;
 import com.pikycz.plugman.PlugMan;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.CodeSource;
 import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,36 +35,68 @@ public class PluginUtil {
      */
     public static void enable(Plugin plugin) {
         if (plugin != null && !plugin.isEnabled()) {
+            LifecycleTimings.Span span = timings().start(plugin.getName(), LifecycleTimings.Phase.ON_ENABLE);
             Server.getInstance().getPluginManager().enablePlugin(plugin);
+            span.stop();
+            if (plugin.isEnabled()) {
+                remember(plugin, true);
+            }
         }
     }
 
     /**
-     * Enable all plugins.
+     * Enable all plugins, dependencies first. Plugins missing a hard
+     * dependency are skipped.
+     *
+     * @return the dependency problems found
      */
-    public static void enableAll() {
-        for (Plugin plugin : Server.getInstance().getPluginManager().getPlugins().values()) {
-            enable(plugin);
+    public static List<String> enableAll() {
+        DependencyGraph graph = DependencyGraph.build(new ArrayList<>(Server.getInstance().getPluginManager().getPlugins().values()));
+        for (Plugin plugin : graph.getOrder()) {
+            if (!graph.isBlocked(plugin)) {
+                enable(plugin);
+            }
         }
+        return graph.getProblems();
     }
 
     /**
-     * Disable a plugin.
+     * Disable a plugin, keeping it disabled after a restart.
      *
      * @param plugin the plugin to disable
      */
     public static void disable(Plugin plugin) {
+        disable(plugin, true);
+    }
+
+    /**
+     * Disable a plugin.
+     *
+     * @param plugin the plugin to disable
+     * @param remember whether an admin asked for it, so it stays disabled
+     * after a restart; false when it is only disabled on the way to being
+     * reloaded or unloaded
+     */
+    public static void disable(Plugin plugin, boolean remember) {
         if (plugin != null && plugin.isEnabled()) {
+            LifecycleTimings.Span span = timings().start(plugin.getName(), LifecycleTimings.Phase.ON_DISABLE);
             Server.getInstance().getPluginManager().disablePlugin(plugin);
+            span.stop();
+            if (remember) {
+                remember(plugin, false);
+            }
         }
     }
 
     /**
-     * Disable all plugins.
+     * Disable all plugins except PlugMan, dependents first.
      */
     public static void disableAll() {
-        for (Plugin plugin : Server.getInstance().getPluginManager().getPlugins().values()) {
-            disable(plugin);
+        DependencyGraph graph = DependencyGraph.build(new ArrayList<>(Server.getInstance().getPluginManager().getPlugins().values()));
+        for (Plugin plugin : graph.getReverseOrder()) {
+            if (plugin != PlugMan.getInstance()) {
+                disable(plugin);
+            }
         }
     }
 
@@ -108,12 +144,30 @@ public class PluginUtil {
      * @return the plugin
      */
     public static Plugin getPluginByName(String name) {
-        for (Plugin plugin : Server.getInstance().getPluginManager().getPlugins().values()) {
-            if (name.equalsIgnoreCase(plugin.getName())) {
-                return plugin;
-            }
+        Map<String, Plugin> plugins = Server.getInstance().getPluginManager().getPlugins();
+        PluginIndex index = getPluginIndex();
+        Plugin plugin = index.get(name);
+        // Loaded or unloaded behind our back, catch up.
+        if (plugin != null && plugins.get(plugin.getName()) != plugin) {
+            index.rebuild(plugins.values());
+            plugin = index.get(name);
         }
-        return null;
+        return plugin;
+    }
+
+    /**
+     * Returns the plugin index, rebuilt first if it has fallen behind the
+     * plugin manager.
+     *
+     * @return the plugin index
+     */
+    public static PluginIndex getPluginIndex() {
+        Map<String, Plugin> plugins = Server.getInstance().getPluginManager().getPlugins();
+        PluginIndex index = PlugMan.getInstance().getPluginIndex();
+        if (index.size() != plugins.size()) {
+            index.rebuild(plugins.values());
+        }
+        return index;
     }
 
     /**
@@ -180,153 +234,428 @@ public class PluginUtil {
      * @return the plugin.
      */
     public static List<String> findByCommand(String command) {
+        return getPluginIndex().findByCommand(command);
+    }
 
-        List<String> plugins = new ArrayList<>();
+    /**
+     * Loads and enables a plugin.
+     *
+     * @param plugin plugin to load
+     * @return status message
+     */
+    private static String load(Plugin plugin) {
+        return load(plugin.getName());
+    }
 
-        for (Plugin plugin : Server.getInstance().getPluginManager().getPlugins().values()) {
+    /**
+     * Loads and enables a plugin.
+     *
+     * @param name plugin's name
+     * @return status message
+     */
+    public static String load(String name) {
 
-            // Map of commands and their attributes.
-            Map<String, Object> commands = plugin.getDescription().getCommands();
+        LifecycleTimings.Span span = timings().start(name, LifecycleTimings.Phase.SCAN);
+        File pluginFile = findPluginFile(name);
+        span.stop();
 
-            if (commands != null) {
+        if (pluginFile == null) {
+            return "No plugin jar found for " + name + ".";
+        }
 
-                // Iterator for all the plugin's commands.
-                Iterator<Map.Entry<String, Object>> commandIterator = commands.entrySet().iterator();
+        return load(pluginFile);
 
-                while (commandIterator.hasNext()) {
+    }
 
-                    // Current value.
-                    Map.Entry<String, Object> commandNext = commandIterator.next();
+    /**
+     * Loads and enables a plugin.
+     *
+     * @param pluginFile the plugin's jar
+     * @return status message
+     */
+    public static String load(File pluginFile) {
 
-                    // Plugin name matches - return.
-                    if (commandNext.getKey().equalsIgnoreCase(command)) {
-                        plugins.add(plugin.getName());
-                        continue;
-                    }
+        Plugin target = loadPlugin(pluginFile);
 
-                    // No match - let's iterate over the attributes and see if
-                    // it has aliases.
-                    Iterator<Map.Entry<String, Object>> attributeIterator = (Iterator<Map.Entry<String, Object>>) commandNext.getValue();
+        if (target == null) {
+            return "Could not load " + pluginFile.getName() + ".";
+        }
 
-                    while (attributeIterator.hasNext()) {
+        enable(target);
+        return null;
 
-                        // Current value.
-                        Map.Entry<String, Object> attributeNext = attributeIterator.next();
+    }
 
-                        // Has an alias attribute.
-                        if (attributeNext.getKey().equals("aliases")) {
+    /**
+     * Loads a plugin and calls its onLoad, without enabling it.
+     *
+     * @param pluginFile the plugin's jar
+     * @return the plugin, or null if it could not be loaded
+     */
+    public static Plugin loadPlugin(File pluginFile) {
 
-                            Object aliases = attributeNext.getValue();
+        Plugin target = null;
 
-                            if (aliases instanceof String) {
-                                if (((String) aliases).equalsIgnoreCase(command)) {
-                                    plugins.add(plugin.getName());
-                                    continue;
-                                }
-                            } else {
+        LifecycleTimings.Span span = timings().start(pluginFile.getName(), LifecycleTimings.Phase.CLASSLOAD);
+        try {
+            target = Server.getInstance().getPluginManager().loadPlugin(pluginFile);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-                                // Cast to a List of Strings.
-                                List<String> array = (List<String>) aliases;
+        if (target != null) {
+            span.stop(target.getName());
+            PlugMan.getInstance().getPluginIndex().add(target);
+
+            span = timings().start(target.getName(), LifecycleTimings.Phase.ON_LOAD);
+            target.onLoad();
+            span.stop();
+
+            StateStore store = PlugMan.getInstance().getStateStore();
+            if (store != null) {
+                store.nextGeneration(target.getName());
+            }
+        }
+        return target;
+
+    }
+
+    /**
+     * Returns the jar providing a plugin. Only touches the disk and the
+     * descriptor index, so it is safe to call off the main thread.
+     *
+     * @param name plugin's name
+     * @return the jar, or null if none was found
+     */
+    public static File findPluginFile(String name) {
 
-                                // Check for matches here.
-                                for (String str : array) {
-                                    if (str.equalsIgnoreCase(command)) {
-                                        plugins.add(plugin.getName());
-                                        continue;
-                                    }
-                                }
+        File pluginFile = new File(new File("plugins"), name + ".jar");
+
+        if (!pluginFile.isFile()) {
+            pluginFile = PlugMan.getInstance().getDescriptorIndex().lookup(name);
+        }
+
+        return pluginFile;
+
+    }
+
+    /**
+     * Returns the jar a loaded plugin was loaded from.
+     *
+     * @param plugin the plugin
+     * @return the jar, or null if it can't be determined
+     */
+    public static File getPluginFile(Plugin plugin) {
+        try {
+            CodeSource source = plugin.getClass().getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null) {
+                return new File(source.getLocation().toURI());
+            }
+        } catch (URISyntaxException | SecurityException | IllegalArgumentException e) {
+            // Not a file location.
+        }
+        return null;
+    }
 
-                            }
+    /**
+     * Reads every class of a jar once so the following load hits the page
+     * cache instead of the disk. Safe to call off the main thread.
+     *
+     * @param pluginFile the plugin's jar
+     * @throws IOException if the jar can't be read
+     */
+    public static void preload(File pluginFile) throws IOException {
 
-                        }
+        byte[] buf = new byte[16 * 1024];
 
+        try (JarFile jar = new JarFile(pluginFile)) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                try (InputStream in = jar.getInputStream(entry)) {
+                    while (in.read(buf) != -1) {
+                        // Drain.
                     }
                 }
-
             }
+        }
 
+    }
+
+    /**
+     * Reload a plugin. With shadow reloads available the new jar is loaded
+     * next to the running plugin first, and the running plugin is only
+     * replaced once the new one is ready.
+     *
+     * @param plugin the plugin to reload
+     */
+    public static void reload(Plugin plugin) {
+        if (plugin == null) {
+            return;
         }
 
-        // No matches.
-        return plugins;
+        if (canShadowReload()) {
+            File file = locate(Collections.singleton(plugin), new ArrayList<>()).get(plugin);
+            if (file == null) {
+                Logger.getLogger(PluginUtil.class.getName()).log(Level.WARNING, "No plugin jar found for {0}.", plugin.getName());
+                return;
+            }
+            try {
+                probe(file, plugin);
+                swap(plugin, instantiate(plugin, file));
+            } catch (IllegalStateException e) {
+                Logger.getLogger(PluginUtil.class.getName()).log(Level.WARNING, e.getMessage(), e.getCause());
+            }
+            return;
+        }
 
+        unload(plugin);
+        load(plugin);
     }
 
     /**
-     * Loads and enables a plugin.
-     *
-     * @param plugin plugin to load
-     * @return status message
+     * @return whether shadow reloads are enabled and this Nukkit build
+     * exposes what they need
      */
-    private static String load(Plugin plugin) {
-        return load(plugin.getName());
+    public static boolean canShadowReload() {
+        PlugMan plugMan = PlugMan.getInstance();
+        ServerInternals internals = plugMan.getServerInternals();
+        return plugMan.getConfig().getBoolean("shadow-reload", true)
+                && internals.canRegisterCommands()
+                && internals.getPlugins(Server.getInstance().getPluginManager()) != null;
     }
 
     /**
-     * Loads and enables a plugin.
+     * Checks that a jar provides the given plugin and that its main class can
+     * be defined, using a throwaway classloader. Only touches the disk, so it
+     * is safe to call off the main thread.
      *
-     * @param name plugin's name
-     * @return status message
+     * @param pluginFile the plugin's new jar
+     * @param running the plugin the jar has to replace
+     * @throws IllegalStateException if the jar can't replace the plugin
      */
-    public static String load(String name) {
+    public static void probe(File pluginFile, Plugin running) {
 
-        Plugin target = null;
+        String name = running.getName();
 
-        File pluginDir = new File("plugins");
+        PluginDescription description;
+        try {
+            description = JarScanner.scan(pluginFile).getDescription();
+        } catch (IOException e) {
+            description = running.getPluginLoader().getPluginDescription(pluginFile);
+        }
 
-        if (!pluginDir.isDirectory()) {
+        if (description == null) {
+            throw new IllegalStateException(pluginFile.getName() + " has no valid plugin descriptor.");
+        }
+        if (!description.getName().equalsIgnoreCase(name)) {
+            throw new IllegalStateException(pluginFile.getName() + " provides " + description.getName() + ", not " + name + ".");
+        }
 
+        try (URLClassLoader probe = new URLClassLoader(new URL[]{pluginFile.toURI().toURL()}, Server.class.getClassLoader())) {
+            Class.forName(description.getMain(), false, probe);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Main class " + description.getMain() + " not found in " + pluginFile.getName() + ".");
+        } catch (NoClassDefFoundError e) {
+            // Needs classes of other plugins, which the real loader resolves.
+        } catch (LinkageError e) {
+            throw new IllegalStateException("Main class of " + pluginFile.getName() + " can't be loaded: " + e, e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + pluginFile.getName() + ".", e);
         }
 
-        File pluginFile = new File(pluginDir, name + ".jar");
+    }
 
-        if (!pluginFile.isFile()) {
-            for (File f : pluginDir.listFiles()) {
-                if (f.getName().endsWith(".jar")) {
-                    try {
-                        PluginDescription desc = PlugMan.getInstance().getPluginLoader().getPluginDescription(f);
-                        if (desc.getName().equalsIgnoreCase(name)) {
-                            pluginFile = f;
-                            break;
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * Loads a new instance of a running plugin from a jar, in a classloader
+     * of its own, without registering it anywhere. The running plugin keeps
+     * serving until {@link #swap} is called.
+     *
+     * @param running the running plugin
+     * @param pluginFile the plugin's new jar
+     * @return the new instance
+     * @throws IllegalStateException if the jar can't be loaded
+     */
+    public static Plugin instantiate(Plugin running, File pluginFile) {
+
+        String name = running.getName();
+        PluginLoader loader = running.getPluginLoader();
+        Map<String, Object> classLoaders = PlugMan.getInstance().getServerInternals().getClassLoaders(loader);
+        Object previous = classLoaders != null ? classLoaders.get(name) : null;
+
+        Plugin candidate;
+        LifecycleTimings.Span span = timings().start(name, LifecycleTimings.Phase.CLASSLOAD);
+        try {
+            candidate = loader.loadPlugin(pluginFile);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not load " + pluginFile.getName() + ": " + e.getMessage(), e);
+        } finally {
+            // The loader registers the new classloader under the plugin's name, keep resolving classes from the running one until the swap.
+            if (classLoaders != null) {
+                if (previous != null) {
+                    classLoaders.put(name, previous);
+                } else {
+                    classLoaders.remove(name);
                 }
             }
         }
+        span.stop();
 
+        if (candidate == null) {
+            throw new IllegalStateException("Could not load " + pluginFile.getName() + ".");
+        }
+        return candidate;
+
+    }
+
+    /**
+     * Replaces a running plugin with a new instance from {@link #instantiate}
+     * in one step. If the new instance fails to load or enable, it is
+     * unloaded and the previous plugin is registered and enabled again.
+     *
+     * @param running the running plugin
+     * @param candidate the new instance
+     * @return the new instance, enabled
+     * @throws IllegalStateException if the swap was rolled back
+     */
+    public static Plugin swap(Plugin running, Plugin candidate) {
+
+        String name = running.getName();
+        PluginManager pluginManager = Server.getInstance().getPluginManager();
+
+        if (pluginManager.getPlugin(name) != running) {
+            release(candidate);
+            throw new IllegalStateException(name + " was unloaded in the meantime.");
+        }
+
+        Map<String, Object> classLoaders = PlugMan.getInstance().getServerInternals().getClassLoaders(running.getPluginLoader());
+        Object runningLoader = classLoaders != null ? classLoaders.get(name) : null;
+
+        unload(Collections.singleton(running), false);
+
+        register(candidate);
+        if (classLoaders != null) {
+            classLoaders.put(name, candidate.getClass().getClassLoader());
+        }
+
+        Throwable failure = null;
         try {
-            target = Server.getInstance().getPluginManager().loadPlugin(pluginFile);
-        } catch (Exception e) {
-            e.printStackTrace();
+            LifecycleTimings.Span span = timings().start(name, LifecycleTimings.Phase.ON_LOAD);
+            candidate.onLoad();
+            span.stop();
+            enable(candidate);
+        } catch (Throwable t) {
+            failure = t;
         }
 
-        target.onLoad();
-        Server.getInstance().getPluginManager().enablePlugin(target);
-        return null;
+        if (failure == null && candidate.isEnabled()) {
+            release(running);
+            StateStore store = PlugMan.getInstance().getStateStore();
+            if (store != null) {
+                store.nextGeneration(name);
+            }
+            return candidate;
+        }
+
+        // Roll back to the plugin that was running.
+        unload(Collections.singleton(candidate));
+        if (classLoaders != null && runningLoader != null) {
+            classLoaders.put(name, runningLoader);
+        }
+        register(running);
+        enable(running);
+
+        throw new IllegalStateException(name + " failed to enable, the previous version was restored.", failure);
 
     }
 
     /**
-     * Reload a plugin.
+     * Adds a plugin to the plugin manager and registers the commands of its
+     * descriptor, as loading it through the plugin manager would.
+     */
+    @SuppressWarnings("unchecked")
+    private static void register(Plugin plugin) {
+
+        PluginManager pluginManager = Server.getInstance().getPluginManager();
+        ServerInternals internals = PlugMan.getInstance().getServerInternals();
+
+        Object plugins = internals.getPlugins(pluginManager);
+        if (plugins instanceof Map) {
+            ((Map<String, Plugin>) plugins).put(plugin.getDescription().getName(), plugin);
+        } else if (plugins instanceof Collection) {
+            ((Collection<Plugin>) plugins).add(plugin);
+        }
+
+        Map<String, Plugin> names = internals.getLookupNames(pluginManager);
+        if (names != null) {
+            names.put(plugin.getName(), plugin);
+        }
+
+        SimpleCommandMap commandMap = internals.getCommandMap(pluginManager);
+        internals.registerCommands(pluginManager, plugin, commandMap != null ? commandMap : Server.getInstance().getCommandMap());
+
+        PlugMan.getInstance().getPluginIndex().add(plugin);
+
+    }
+
+    /**
+     * Reload several plugins at once. They are unloaded together in a single
+     * pass over the listeners and commands, then loaded again dependencies
+     * first. Plugins whose jar can't be found are left untouched.
      *
-     * @param plugin the plugin to reload
+     * @param plugins the plugins to reload
+     * @return the problems found, one message per plugin
      */
-    public static void reload(Plugin plugin) {
-        if (plugin != null) {
-            unload(plugin);
-            load(plugin);
+    public static List<String> reload(Collection<Plugin> plugins) {
+        List<String> problems = new ArrayList<>();
+        Map<Plugin, File> files = locate(plugins, problems);
+
+        List<Plugin> order = DependencyGraph.build(files.keySet()).getOrder();
+        unload(files.keySet());
+
+        for (Plugin plugin : order) {
+            String error = load(files.get(plugin));
+            if (error != null) {
+                problems.add(error);
+            }
         }
+        return problems;
     }
 
     /**
-     * Reload all plugins.
+     * Returns the jars of plugins about to be reloaded.
+     *
+     * @param plugins the plugins
+     * @param problems where to add a message for every plugin without a jar
+     * @return the plugins with their jars, in the given order
      */
-    public static void reloadAll() {
-        for (Plugin plugin : Server.getInstance().getPluginManager().getPlugins().values()) {
-            reload(plugin);
+    public static Map<Plugin, File> locate(Collection<Plugin> plugins, List<String> problems) {
+        Map<Plugin, File> files = new LinkedHashMap<>();
+        for (Plugin plugin : plugins) {
+            File file = getPluginFile(plugin);
+            if (file == null || !file.isFile()) {
+                file = findPluginFile(plugin.getName());
+            }
+            if (file == null) {
+                problems.add("No plugin jar found for " + plugin.getName() + ".");
+            } else {
+                files.put(plugin, file);
+            }
         }
+        return files;
+    }
+
+    /**
+     * Reload all plugins except PlugMan.
+     */
+    public static void reloadAll() {
+        // Copy first, unloading changes the plugin manager's map.
+        List<Plugin> plugins = new ArrayList<>(Server.getInstance().getPluginManager().getPlugins().values());
+        plugins.remove(PlugMan.getInstance());
+        reload(plugins);
     }
 
     /**
@@ -336,91 +665,106 @@ public class PluginUtil {
      * @return the message to send to the user.
      */
     public static String unload(Plugin plugin) {
+        unload(Collections.singleton(plugin));
+        return null;
+    }
 
-        String name = plugin.getName();
-
-        PluginManager pluginManager = Server.getInstance().getPluginManager();
+    /**
+     * Unload several plugins at once, dependents first. Their listeners and
+     * commands are removed in a single pass, so this costs about the same as
+     * unloading one plugin.
+     *
+     * @param plugins the plugins to unload
+     */
+    public static void unload(Collection<Plugin> plugins) {
+        unload(plugins, true);
+    }
 
-        SimpleCommandMap commandMap = null;
+    /**
+     * Unload several plugins at once, optionally keeping their classloaders
+     * open so they can be registered and enabled again.
+     *
+     * @param plugins the plugins to unload
+     * @param release whether to close the classloaders, otherwise
+     * {@link #release} has to be called once the plugins are gone for good
+     */
+    private static void unload(Collection<Plugin> plugins, boolean release) {
 
-        List<Plugin> plugins = null;
+        if (plugins.isEmpty()) {
+            return;
+        }
 
-        Map<String, Plugin> names = null;
-        Map<String, Command> commands = null;
-        Map<Event, SortedSet<RegisteredListener>> listeners = null;
+        PluginManager pluginManager = Server.getInstance().getPluginManager();
 
-        boolean reloadlisteners = true;
+        ServerInternals internals = PlugMan.getInstance().getServerInternals();
 
-        if (pluginManager != null) {
+        List<Plugin> order = DependencyGraph.build(plugins).getReverseOrder();
 
+        for (Plugin plugin : order) {
+            LifecycleTimings.Span span = timings().start(plugin.getName(), LifecycleTimings.Phase.ON_DISABLE);
             pluginManager.disablePlugin(plugin);
+            span.stop();
+            // Also catches tasks of a plugin whose onDisable threw before the server got to it.
+            Server.getInstance().getScheduler().cancelTask(plugin);
+        }
 
-            try {
-
-                Field pluginsField = Server.getInstance().getPluginManager().getClass().getDeclaredField("plugins");
-                pluginsField.setAccessible(true);
-                plugins = (List<Plugin>) pluginsField.get(pluginManager);
-
-                Field lookupNamesField = Server.getInstance().getPluginManager().getClass().getDeclaredField("lookupNames");
-                lookupNamesField.setAccessible(true);
-                names = (Map<String, Plugin>) lookupNamesField.get(pluginManager);
-
-                try {
-                    Field listenersField = Server.getInstance().getPluginManager().getClass().getDeclaredField("listeners");
-                    listenersField.setAccessible(true);
-                    listeners = (Map<Event, SortedSet<RegisteredListener>>) listenersField.get(pluginManager);
-                } catch (Exception e) {
-                    reloadlisteners = false;
-                }
-
-                Field commandMapField = Server.getInstance().getPluginManager().getClass().getDeclaredField("commandMap");
-                commandMapField.setAccessible(true);
-                commandMap = (SimpleCommandMap) commandMapField.get(pluginManager);
+        // The cleanup is shared, every plugin of the batch is charged the whole of it.
+        List<LifecycleTimings.Span> spans = new ArrayList<>();
+        for (Plugin plugin : order) {
+            spans.add(timings().start(plugin.getName(), LifecycleTimings.Phase.CLEANUP));
+        }
 
-                Field knownCommandsField = SimpleCommandMap.class.getDeclaredField("knownCommands");
-                knownCommandsField.setAccessible(true);
-                commands = (Map<String, Command>) knownCommandsField.get(commandMap);
+        Object pluginMap = internals.getPlugins(pluginManager);
+        Map<String, Plugin> names = internals.getLookupNames(pluginManager);
+        Map<Event, SortedSet<RegisteredListener>> listeners = internals.getListeners(pluginManager);
+        SimpleCommandMap commandMap = internals.getCommandMap(pluginManager);
+        if (commandMap == null) {
+            commandMap = Server.getInstance().getCommandMap();
+        }
+        Map<String, Command> commands = internals.getKnownCommands(commandMap);
 
-            } catch (NoSuchFieldException e) {
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
+        for (Plugin plugin : order) {
+            if (pluginMap instanceof Map) {
+                ((Map<?, ?>) pluginMap).values().remove(plugin);
+            } else if (pluginMap instanceof Collection) {
+                ((Collection<?>) pluginMap).remove(plugin);
             }
 
+            if (names != null && names.get(plugin.getName()) == plugin) {
+                names.remove(plugin.getName());
+            }
         }
 
-        pluginManager.disablePlugin(plugin);
+        PlugMan.getInstance().getRegistrationIndex().remove(order, listeners, commands, commandMap);
 
-        if (plugins != null && plugins.contains(plugin)) {
-            plugins.remove(plugin);
+        for (Plugin plugin : order) {
+            PlugMan.getInstance().getPluginIndex().remove(plugin);
+            if (release) {
+                release(plugin);
+            }
         }
 
-        if (names != null && names.containsKey(name)) {
-            names.remove(name);
+        for (LifecycleTimings.Span span : spans) {
+            span.stop();
         }
 
-        if (listeners != null && reloadlisteners) {
-            for (SortedSet<RegisteredListener> set : listeners.values()) {
-                for (Iterator<RegisteredListener> it = set.iterator(); it.hasNext();) {
-                    RegisteredListener value = it.next();
-                    if (value.getPlugin() == plugin) {
-                        it.remove();
-                    }
-                }
-            }
-        }
+    }
 
-        if (commandMap != null) {
-            for (Iterator<Map.Entry<String, Command>> it = commands.entrySet().iterator(); it.hasNext();) {
-                Map.Entry<String, Command> entry = it.next();
-                if (entry.getValue() instanceof PluginCommand) {
-                    PluginCommand c = (PluginCommand) entry.getValue();
-                    if (c.getPlugin() == plugin) {
-                        c.unregister(commandMap);
-                        it.remove();
-                    }
-                }
-            }
+    /**
+     * Closes the classloader of an unloaded plugin, stops the threads and
+     * executors it left running and starts watching it for leaks.
+     *
+     * @param plugin the plugin
+     */
+    public static void release(Plugin plugin) {
+
+        PluginReaper reaper = PlugMan.getInstance().getReaper();
+        if (reaper != null) {
+            Plugin current = Server.getInstance().getPluginManager().getPlugin(plugin.getName());
+            ClassLoader replacement = current != null && current != plugin ? current.getClass().getClassLoader() : null;
+            PluginPipeline pipeline = PlugMan.getInstance().getPipeline();
+            pipeline.walk(reaper.findExecutors(plugin))
+                    .thenCompose(executors -> reaper.reap(plugin, replacement, executors));
         }
 
         // Attempt to close the classloader to unlock any handles on the plugin's jar file.
@@ -428,19 +772,7 @@ public class PluginUtil {
 
         if (cl instanceof URLClassLoader) {
 
-            try {
-
-                Field pluginField = cl.getClass().getDeclaredField("plugin");
-                pluginField.setAccessible(true);
-                pluginField.set(cl, null);
-
-                Field pluginInitField = cl.getClass().getDeclaredField("pluginInit");
-                pluginInitField.setAccessible(true);
-                pluginInitField.set(cl, null);
-
-            } catch (NoSuchFieldException | SecurityException | IllegalArgumentException | IllegalAccessException ex) {
-                Logger.getLogger(PluginUtil.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            PlugMan.getInstance().getServerInternals().clearLoaderPlugin(cl);
 
             try {
 
@@ -449,13 +781,25 @@ public class PluginUtil {
                 Logger.getLogger(PluginUtil.class.getName()).log(Level.SEVERE, null, ex);
             }
 
+            // Instead of forcing a full collection, report when the loader is collected or what keeps it alive.
+            PlugMan.getInstance().getLeakTracker().track(plugin.getName(), cl);
+
         }
 
-        // Will not work on processes started with the -XX:+DisableExplicitGC flag, but lets try it anyway.
-        // This tries to get around the issue where Windows refuses to unlock jar files that were previously loaded into the JVM.
-        System.gc();
-        return null;
+    }
+
+    /**
+     * Records the state an admin left a plugin in, so it survives a restart.
+     */
+    private static void remember(Plugin plugin, boolean enabled) {
+        StateStore store = PlugMan.getInstance().getStateStore();
+        if (store != null) {
+            store.setEnabled(plugin.getName(), enabled);
+        }
+    }
 
+    private static LifecycleTimings timings() {
+        return PlugMan.getInstance().getTimings();
     }
 
 }
@@ -0,0 +1,433 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.Player;
+import cn.nukkit.Server;
+import cn.nukkit.event.HandlerList;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.plugin.RegisteredListener;
+import cn.nukkit.utils.Logger;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps plugins within a budget of main thread time and listener
+ * exceptions.
+ *
+ * A daemon thread samples the main thread's stack at a fixed interval and
+ * charges each sample to the plugin whose classloader defined the topmost
+ * plugin frame. At the end of every window the samples are turned into
+ * milliseconds per tick, using the ticks the server actually ran in that
+ * window, and the exceptions thrown by the plugin's listeners are counted.
+ * A plugin over budget for the configured number of windows in a row is
+ * reported, and disabled or unloaded if so configured.
+ *
+ * The sampler costs one stack trace of the main thread per interval; the
+ * class of every frame is looked up once and cached. Listeners are wrapped
+ * by {@link GuardedRegisteredListener}, which costs a try block per call.
+ *
+ * @author PikyCZ
+ */
+public class PluginWatchdog {
+
+    private static final Method FIND_LOADED_CLASS = findLoadedClassMethod();
+
+    private static final String[] SERVER_PACKAGES = {"java.", "javax.", "sun.", "jdk.", "cn.nukkit.", "co.aikar."};
+
+    // Cached class owners before the cache is dropped, in case classes keep getting generated.
+    private static final int MAX_OWNERS = 100000;
+
+    /**
+     * What to do with a plugin over budget. Every action is reported.
+     */
+    public enum Action {
+
+        /**
+         * Only report it.
+         */
+        ALERT,
+        /**
+         * Disable it, which is remembered across restarts.
+         */
+        DISABLE,
+        /**
+         * Unload it, so its tasks, threads and classes go too.
+         */
+        QUARANTINE
+
+    }
+
+    private final Plugin owner;
+
+    private final PluginPipeline pipeline;
+
+    private final Logger logger;
+
+    private final String prefix;
+
+    private final long intervalMillis;
+
+    private final long windowMillis;
+
+    private final double maxTickMillis;
+
+    private final int maxExceptions;
+
+    private final int windows;
+
+    private final Action action;
+
+    private final Set<String> exempt = new HashSet<>();
+
+    private final Thread mainThread;
+
+    private final Map<String, Health> health = new ConcurrentHashMap<>();
+
+    // Class names to the plugin that defined them, "" for none. Only touched by the sampler thread.
+    private final Map<String, String> owners = new HashMap<>();
+
+    private volatile Map<ClassLoader, String> loaders = new IdentityHashMap<>();
+
+    // Set when the plugins changed, the sampler then starts over with the owners.
+    private volatile boolean ownersStale;
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    /**
+     * Main thread time and exceptions of one plugin.
+     */
+    public static class Health {
+
+        private final String plugin;
+
+        private final AtomicInteger exceptions = new AtomicInteger();
+
+        // Only touched by the sampler thread.
+        private int samples;
+
+        private volatile double tickMillis;
+
+        private volatile int lastExceptions;
+
+        private volatile int strikes;
+
+        private Health(String plugin) {
+            this.plugin = plugin;
+        }
+
+        void exception() {
+            exceptions.incrementAndGet();
+        }
+
+        public String getPlugin() {
+            return plugin;
+        }
+
+        /**
+         * @return the main thread milliseconds per tick in the last window
+         */
+        public double getTickMillis() {
+            return tickMillis;
+        }
+
+        /**
+         * @return the exceptions thrown by the listeners in the last window
+         */
+        public int getExceptions() {
+            return lastExceptions;
+        }
+
+        /**
+         * @return the windows in a row the plugin was over budget
+         */
+        public int getStrikes() {
+            return strikes;
+        }
+
+    }
+
+    /**
+     * Must be created on the main thread, which is the one sampled.
+     *
+     * @param owner PlugMan, which is never acted on
+     * @param pipeline the pipeline used to act on the main thread
+     * @param logger where to report to
+     * @param prefix the prefix of the messages sent to admins
+     * @param intervalMillis milliseconds between two samples
+     * @param windowMillis milliseconds per window
+     * @param maxTickMillis main thread milliseconds per tick a plugin may
+     * take on average over a window
+     * @param maxExceptions exceptions the listeners of a plugin may throw per
+     * window
+     * @param windows windows in a row a plugin has to be over budget before
+     * it is acted on
+     * @param action what to do with a plugin over budget
+     * @param exempt names of plugins that are only reported
+     */
+    public PluginWatchdog(Plugin owner, PluginPipeline pipeline, Logger logger, String prefix, long intervalMillis, long windowMillis,
+            double maxTickMillis, int maxExceptions, int windows, Action action, List<String> exempt) {
+        this.owner = owner;
+        this.pipeline = pipeline;
+        this.logger = logger;
+        this.prefix = prefix;
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.windowMillis = Math.max(this.intervalMillis * 10, windowMillis);
+        this.maxTickMillis = maxTickMillis;
+        this.maxExceptions = maxExceptions;
+        this.windows = Math.max(1, windows);
+        this.action = action;
+        for (String name : exempt) {
+            this.exempt.add(name.toLowerCase());
+        }
+        this.mainThread = Thread.currentThread();
+    }
+
+    /**
+     * Wraps the listeners and starts sampling. Must be called on the main
+     * thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        refresh();
+        running = true;
+        thread = new Thread(this::run, "PlugMan Watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops sampling and puts the original listeners back. Must be called on
+     * the main thread.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+
+        for (HandlerList handlers : HandlerList.getHandlerLists()) {
+            for (RegisteredListener listener : handlers.getRegisteredListeners()) {
+                if (listener instanceof GuardedRegisteredListener) {
+                    handlers.unregister(listener);
+                    handlers.register(((GuardedRegisteredListener) listener).getDelegate());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the plugins seen in the last window, most main thread time
+     * first
+     */
+    public List<Health> getHealth() {
+        List<Health> list = new ArrayList<>(health.values());
+        list.sort((a, b) -> Double.compare(b.tickMillis, a.tickMillis));
+        return list;
+    }
+
+    private void run() {
+        long windowStart = System.currentTimeMillis();
+        int windowTick = Server.getInstance().getTick();
+        int taken = 0;
+
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            sample();
+            taken++;
+
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= windowMillis) {
+                int tick = Server.getInstance().getTick();
+                endWindow(now - windowStart, taken, Math.max(1, tick - windowTick));
+                windowStart = now;
+                windowTick = tick;
+                taken = 0;
+            }
+        }
+    }
+
+    private void sample() {
+        if (ownersStale) {
+            ownersStale = false;
+            owners.clear();
+            if (FIND_LOADED_CLASS == null) {
+                // Can't ask the classloaders on this JVM, go by the classes in their jars.
+                for (Map.Entry<ClassLoader, String> entry : loaders.entrySet()) {
+                    for (String name : PluginFootprint.classNames(entry.getKey())) {
+                        owners.put(name, entry.getValue());
+                    }
+                }
+            }
+        }
+        for (StackTraceElement frame : mainThread.getStackTrace()) {
+            String plugin = owner(frame.getClassName());
+            if (!plugin.isEmpty()) {
+                health.computeIfAbsent(plugin, Health::new).samples++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the name of the plugin that defined a class, or "" if none did
+     */
+    private String owner(String className) {
+        String plugin = owners.get(className);
+        if (plugin != null) {
+            return plugin;
+        }
+
+        plugin = "";
+        if (!isServerClass(className) && FIND_LOADED_CLASS != null) {
+            for (Map.Entry<ClassLoader, String> entry : loaders.entrySet()) {
+                try {
+                    // Another plugin's loader may have loaded the class on its behalf, only its defining loader counts.
+                    Class<?> clazz = (Class<?>) FIND_LOADED_CLASS.invoke(entry.getKey(), className);
+                    if (clazz != null && clazz.getClassLoader() == entry.getKey()) {
+                        plugin = entry.getValue();
+                        break;
+                    }
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    // Not attributed.
+                }
+            }
+        }
+
+        if (owners.size() >= MAX_OWNERS) {
+            owners.clear();
+            ownersStale = FIND_LOADED_CLASS == null;
+        }
+        owners.put(className, plugin);
+        return plugin;
+    }
+
+    private static boolean isServerClass(String className) {
+        for (String prefix : SERVER_PACKAGES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void endWindow(long millis, int taken, int ticks) {
+        // The sleeps overshoot, so a sample stands for the real time between samples.
+        double sampleMillis = (double) millis / Math.max(1, taken);
+
+        List<Health> breached = new ArrayList<>();
+        for (Health h : health.values()) {
+            h.tickMillis = h.samples * sampleMillis / ticks;
+            h.lastExceptions = h.exceptions.getAndSet(0);
+            h.samples = 0;
+
+            if (h.tickMillis > maxTickMillis || h.lastExceptions > maxExceptions) {
+                h.strikes++;
+                if (h.strikes >= windows) {
+                    breached.add(h);
+                }
+            } else {
+                h.strikes = 0;
+            }
+        }
+
+        pipeline.sync(() -> {
+            refresh();
+            for (Health h : breached) {
+                act(h);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Picks up the plugins and listeners added since the last window and
+     * forgets the ones that are gone.
+     */
+    private void refresh() {
+        Map<ClassLoader, String> current = new IdentityHashMap<>();
+        Set<String> names = new HashSet<>();
+        for (Plugin plugin : Server.getInstance().getPluginManager().getPlugins().values()) {
+            current.put(plugin.getClass().getClassLoader(), plugin.getName());
+            names.add(plugin.getName());
+        }
+        current.remove(Server.class.getClassLoader());
+        if (!current.equals(loaders)) {
+            loaders = current;
+            ownersStale = true;
+        }
+        health.keySet().retainAll(names);
+
+        for (HandlerList handlers : HandlerList.getHandlerLists()) {
+            for (RegisteredListener listener : handlers.getRegisteredListeners()) {
+                // Listeners being profiled are picked up once the profiler puts them back.
+                if (listener instanceof GuardedRegisteredListener || listener instanceof TimedRegisteredListener || listener.getPlugin() == owner) {
+                    continue;
+                }
+                handlers.unregister(listener);
+                handlers.register(new GuardedRegisteredListener(listener, health.computeIfAbsent(listener.getPlugin().getName(), Health::new)));
+            }
+        }
+    }
+
+    private void act(Health h) {
+        Plugin plugin = PluginUtil.getPluginByName(h.plugin);
+        if (plugin == null || plugin == owner || !plugin.isEnabled()) {
+            return;
+        }
+        h.strikes = 0;
+
+        String reason = h.plugin + " was over budget for " + windows * windowMillis / 1000 + "s: "
+                + String.format("%.1f", h.tickMillis) + "ms per tick, " + h.lastExceptions + " exceptions per " + windowMillis / 1000 + "s";
+
+        Action taken = exempt.contains(h.plugin.toLowerCase()) ? Action.ALERT : action;
+        switch (taken) {
+            case DISABLE:
+                PluginUtil.disable(plugin);
+                alert(reason + ", disabled it.");
+                break;
+            case QUARANTINE:
+                PluginUtil.unload(plugin);
+                alert(reason + ", unloaded it.");
+                break;
+            default:
+                alert(reason + ".");
+        }
+    }
+
+    private void alert(String message) {
+        logger.warning(message);
+        for (Player player : Server.getInstance().getOnlinePlayers().values()) {
+            if (player.hasPermission("plugman.main")) {
+                player.sendMessage(prefix + " §c" + message);
+            }
+        }
+    }
+
+    private static Method findLoadedClassMethod() {
+        try {
+            Method method = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+            method.setAccessible(true);
+            return method;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+}
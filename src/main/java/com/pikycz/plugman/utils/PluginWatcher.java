@@ -0,0 +1,320 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.Server;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.utils.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads plugins whose jar changes in the plugins folder.
+ *
+ * The watcher thread blocks on the {@link WatchService} while the folder is
+ * idle, so there is no polling and no directory scan until something is
+ * written. Changed jars are only picked up once their size and modification
+ * time have been stable for the settle time, and every jar that changes
+ * within that window is reloaded in the same batch. A jar that was touched
+ * without its content changing is recognised by its hash and left alone.
+ *
+ * @author PikyCZ
+ */
+public class PluginWatcher {
+
+    private final PluginPipeline pipeline;
+
+    private final DescriptorIndex descriptorIndex;
+
+    private final Logger logger;
+
+    private final File pluginDir;
+
+    private final long settleMillis;
+
+    // Only touched by the watcher thread.
+    private final Map<String, Long> hashes = new HashMap<>();
+
+    private final Map<Path, Pending> pending = new LinkedHashMap<>();
+
+    private volatile boolean running;
+
+    private WatchService service;
+
+    private Thread thread;
+
+    private static class Pending {
+
+        private long size;
+
+        private long modified;
+
+        private long changedAt;
+
+        private Pending(File file) {
+            update(file);
+        }
+
+        /**
+         * @return whether the file changed since the last check
+         */
+        private boolean update(File file) {
+            long size = file.length();
+            long modified = file.lastModified();
+            if (size == this.size && modified == this.modified && changedAt != 0) {
+                return false;
+            }
+            this.size = size;
+            this.modified = modified;
+            this.changedAt = System.currentTimeMillis();
+            return true;
+        }
+
+    }
+
+    /**
+     * @param pipeline the pipeline used to run the reloads on the main thread
+     * @param descriptorIndex the index providing the content hashes of jars
+     * @param logger where to report reloads to
+     * @param pluginDir the directory holding the plugin jars
+     * @param settleMillis how long a changed jar must stay unchanged before it
+     * is reloaded
+     */
+    public PluginWatcher(PluginPipeline pipeline, DescriptorIndex descriptorIndex, Logger logger, File pluginDir, long settleMillis) {
+        this.pipeline = pipeline;
+        this.descriptorIndex = descriptorIndex;
+        this.logger = logger;
+        this.pluginDir = pluginDir;
+        this.settleMillis = Math.max(50, settleMillis);
+    }
+
+    /**
+     * Starts watching the plugins folder.
+     *
+     * @throws IOException if the folder can't be watched
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        service = FileSystems.getDefault().newWatchService();
+        try {
+            pluginDir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            service.close();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(this::run, "PlugMan Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching. Changes that have not settled yet are dropped.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (service != null) {
+            try {
+                // Wakes the thread blocked in take().
+                service.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+            service = null;
+        }
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void run() {
+        WatchService watchService = service;
+        try {
+            remember();
+        } catch (RuntimeException e) {
+            logger.error("Could not index the plugins folder, every jar counts as changed", e);
+        }
+
+        try {
+            while (running) {
+                WatchKey key = pending.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(settleMillis, TimeUnit.MILLISECONDS);
+
+                // One bad jar or failed reload must not end the watching.
+                try {
+                    if (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                overflow();
+                                continue;
+                            }
+                            Path name = (Path) event.context();
+                            if (name.toString().endsWith(".jar")) {
+                                changed(pluginDir.toPath().resolve(name));
+                            }
+                        }
+                        key.reset();
+                    }
+
+                    if (!pending.isEmpty() && isSettled()) {
+                        flush();
+                    }
+                } catch (ClosedWatchServiceException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    // Dropped so the same failure doesn't repeat every settle time; the next write picks the jars up again.
+                    pending.clear();
+                    logger.error("Could not check the changed plugins", e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopping.
+        }
+    }
+
+    /**
+     * Events were lost, look at every jar in the folder and every jar that
+     * was there before.
+     */
+    private void overflow() {
+        File[] files = pluginDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".jar") && file.isFile()) {
+                    changed(file.toPath());
+                }
+            }
+        }
+        for (String path : hashes.keySet()) {
+            changed(new File(path).toPath());
+        }
+    }
+
+    private void changed(Path path) {
+        Pending p = pending.get(path);
+        if (p == null) {
+            pending.put(path, new Pending(path.toFile()));
+        } else {
+            p.update(path.toFile());
+        }
+    }
+
+    /**
+     * @return whether no pending jar changed within the settle time
+     */
+    private boolean isSettled() {
+        long now = System.currentTimeMillis();
+        boolean settled = true;
+        for (Map.Entry<Path, Pending> entry : pending.entrySet()) {
+            Pending p = entry.getValue();
+            if (p.update(entry.getKey().toFile()) || now - p.changedAt < settleMillis) {
+                settled = false;
+            }
+        }
+        return settled;
+    }
+
+    private void flush() {
+        // Hashing reads the jars without mapping them, so no handle is left that would lock a jar on Windows.
+        descriptorIndex.refresh();
+
+        List<File> changed = new ArrayList<>();
+        for (Iterator<Path> it = pending.keySet().iterator(); it.hasNext();) {
+            File file = it.next().toFile();
+            it.remove();
+
+            DescriptorIndex.Entry entry = descriptorIndex.getEntry(file);
+            if (entry == null) {
+                // Deleted or renamed in the meantime.
+                hashes.remove(file.getAbsolutePath());
+                continue;
+            }
+
+            Long previous = hashes.put(file.getAbsolutePath(), entry.getHash());
+            if (previous == null || previous != entry.getHash()) {
+                changed.add(file.getAbsoluteFile());
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            pipeline.sync(() -> reload(changed)).whenComplete((result, error) -> {
+                if (error != null) {
+                    logger.error("Reloading changed plugins failed", error);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reloads the loaded plugins of the changed jars, dependents unloaded
+     * first and dependencies loaded first.
+     */
+    private Void reload(List<File> changed) {
+        Map<Plugin, File> targets = new HashMap<>();
+        for (Plugin plugin : Server.getInstance().getPluginManager().getPlugins().values()) {
+            File file = PluginUtil.getPluginFile(plugin);
+            if (file != null && changed.contains(file.getAbsoluteFile()) && !isSelf(plugin)) {
+                targets.put(plugin, file);
+            }
+        }
+        if (targets.isEmpty()) {
+            return null;
+        }
+
+        DependencyGraph graph = DependencyGraph.build(targets.keySet());
+        List<String> names = new ArrayList<>();
+        for (Plugin plugin : graph.getOrder()) {
+            names.add(plugin.getName());
+        }
+        logger.info("Reloading changed plugins: " + String.join(", ", names));
+
+        PluginUtil.unload(targets.keySet());
+        for (Plugin plugin : graph.getOrder()) {
+            String error = PluginUtil.load(targets.get(plugin));
+            if (error != null) {
+                logger.warning(error);
+            }
+        }
+        return null;
+    }
+
+    private boolean isSelf(Plugin plugin) {
+        return plugin.getClass().getClassLoader() == getClass().getClassLoader();
+    }
+
+    /**
+     * Records the current hash of every jar, so later changes can be told
+     * apart from touches.
+     */
+    private void remember() {
+        descriptorIndex.refresh();
+        File[] files = pluginDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            DescriptorIndex.Entry entry = descriptorIndex.getEntry(file);
+            if (entry != null) {
+                hashes.put(file.getAbsolutePath(), entry.getHash());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.command.Command;
+import cn.nukkit.command.PluginCommand;
+import cn.nukkit.command.SimpleCommandMap;
+import cn.nukkit.event.Event;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.plugin.RegisteredListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+
+/**
+ * Reverse index from each plugin to the listeners and command keys it owns,
+ * so unloading a plugin only touches its own entries instead of sweeping
+ * every listener and command on the server.
+ *
+ * The index notices registrations it wasn't told about by comparing the size
+ * of every listener set and of the command map with the size it last saw,
+ * and only rescans what changed. An unregister followed by a register keeps
+ * the size; when removing a plugin finds an indexed entry that is no longer
+ * registered, the index is known to have missed such a swap, and that
+ * removal falls back to sweeping every listener set or command.
+ *
+ * @author PikyCZ
+ */
+public class RegistrationIndex {
+
+    private final Map<Plugin, Map<Event, List<RegisteredListener>>> listenersByPlugin = new HashMap<>();
+
+    private final Map<Plugin, Set<String>> commandsByPlugin = new HashMap<>();
+
+    private final Map<RegisteredListener, Boolean> indexedListeners = new IdentityHashMap<>();
+
+    private final Map<SortedSet<RegisteredListener>, Integer> setSizes = new IdentityHashMap<>();
+
+    private final Map<String, Command> indexedCommands = new HashMap<>();
+
+    private int commandsSize = -1;
+
+    /**
+     * Drops everything and indexes all current registrations.
+     *
+     * @param listeners the plugin manager's listeners, may be null
+     * @param commands the command map's known commands, may be null
+     */
+    public synchronized void rebuild(Map<Event, SortedSet<RegisteredListener>> listeners, Map<String, Command> commands) {
+        listenersByPlugin.clear();
+        commandsByPlugin.clear();
+        indexedListeners.clear();
+        setSizes.clear();
+        indexedCommands.clear();
+        commandsSize = -1;
+        sync(listeners, commands);
+    }
+
+    /**
+     * Indexes registrations made since the last call. Only listener sets and
+     * the command map whose size changed are scanned.
+     *
+     * @param listeners the plugin manager's listeners, may be null
+     * @param commands the command map's known commands, may be null
+     */
+    public synchronized void sync(Map<Event, SortedSet<RegisteredListener>> listeners, Map<String, Command> commands) {
+        if (listeners != null) {
+            for (Map.Entry<Event, SortedSet<RegisteredListener>> entry : listeners.entrySet()) {
+                SortedSet<RegisteredListener> set = entry.getValue();
+                Integer size = setSizes.get(set);
+                if (size != null && size == set.size()) {
+                    continue;
+                }
+                for (RegisteredListener listener : set) {
+                    if (indexedListeners.put(listener, Boolean.TRUE) == null) {
+                        listenersOf(listener.getPlugin()).computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(listener);
+                    }
+                }
+                setSizes.put(set, set.size());
+            }
+        }
+
+        if (commands != null && commands.size() != commandsSize) {
+            for (Map.Entry<String, Command> entry : commands.entrySet()) {
+                if (entry.getValue() instanceof PluginCommand && indexedCommands.get(entry.getKey()) != entry.getValue()) {
+                    Plugin owner = ((PluginCommand<?>) entry.getValue()).getPlugin();
+                    indexedCommands.put(entry.getKey(), entry.getValue());
+                    commandsByPlugin.computeIfAbsent(owner, k -> new LinkedHashSet<>()).add(entry.getKey());
+                }
+            }
+            commandsSize = commands.size();
+        }
+    }
+
+    /**
+     * @return the number of listeners indexed for a plugin
+     */
+    public synchronized int getListenerCount(Plugin plugin) {
+        int count = 0;
+        Map<Event, List<RegisteredListener>> owned = listenersByPlugin.get(plugin);
+        if (owned != null) {
+            for (List<RegisteredListener> list : owned.values()) {
+                count += list.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the command keys indexed for a plugin
+     */
+    public synchronized Set<String> getCommandKeys(Plugin plugin) {
+        Set<String> keys = commandsByPlugin.get(plugin);
+        return keys != null ? Collections.unmodifiableSet(new LinkedHashSet<>(keys)) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Removes every listener and command owned by the given plugins and drops
+     * them from the index. Only the indexed entries are touched, unless one
+     * of them turns out to be stale; then one pass over the listener sets or
+     * commands catches what the index missed.
+     *
+     * @param plugins the plugins
+     * @param listeners the plugin manager's listeners, may be null
+     * @param commands the command map's known commands, may be null
+     * @param commandMap the command map commands get unregistered from
+     */
+    public synchronized void remove(Collection<Plugin> plugins, Map<Event, SortedSet<RegisteredListener>> listeners, Map<String, Command> commands, SimpleCommandMap commandMap) {
+        sync(listeners, commands);
+
+        boolean listenersDrifted = false;
+        boolean commandsDrifted = false;
+        for (Plugin plugin : plugins) {
+            Map<Event, List<RegisteredListener>> owned = listenersByPlugin.remove(plugin);
+            if (owned != null) {
+                for (Map.Entry<Event, List<RegisteredListener>> entry : owned.entrySet()) {
+                    SortedSet<RegisteredListener> set = listeners != null ? listeners.get(entry.getKey()) : null;
+                    for (RegisteredListener listener : entry.getValue()) {
+                        indexedListeners.remove(listener);
+                        if (set != null && !set.remove(listener)) {
+                            listenersDrifted = true;
+                        }
+                    }
+                    if (set != null) {
+                        setSizes.put(set, set.size());
+                    }
+                }
+            }
+
+            Set<String> keys = commandsByPlugin.remove(plugin);
+            if (keys != null) {
+                for (String key : keys) {
+                    Command indexed = indexedCommands.get(key);
+                    // The key may have been taken over by another plugin since it was indexed.
+                    if (!(indexed instanceof PluginCommand) || ((PluginCommand<?>) indexed).getPlugin() != plugin) {
+                        continue;
+                    }
+                    indexedCommands.remove(key);
+                    if (commands == null) {
+                        continue;
+                    }
+                    if (commands.get(key) == indexed) {
+                        indexed.unregister(commandMap);
+                        commands.remove(key);
+                    } else {
+                        commandsDrifted = true;
+                    }
+                }
+            }
+        }
+
+        if (listenersDrifted || commandsDrifted) {
+            sweep(plugins, listenersDrifted ? listeners : null, commandsDrifted ? commands : null, commandMap);
+        }
+        if (commands != null) {
+            commandsSize = commands.size();
+        }
+    }
+
+    /**
+     * Removes the given plugins' listeners and commands by looking at every
+     * registration, for when the index turned out to be stale.
+     */
+    private void sweep(Collection<Plugin> plugins, Map<Event, SortedSet<RegisteredListener>> listeners, Map<String, Command> commands, SimpleCommandMap commandMap) {
+        Set<Plugin> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        removed.addAll(plugins);
+
+        if (listeners != null) {
+            for (SortedSet<RegisteredListener> set : listeners.values()) {
+                if (set.removeIf(listener -> removed.contains(listener.getPlugin()))) {
+                    setSizes.put(set, set.size());
+                }
+            }
+            indexedListeners.keySet().removeIf(listener -> removed.contains(listener.getPlugin()));
+        }
+
+        if (commands != null) {
+            for (Iterator<Map.Entry<String, Command>> it = commands.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Command> entry = it.next();
+                Command command = entry.getValue();
+                if (command instanceof PluginCommand && removed.contains(((PluginCommand<?>) command).getPlugin())) {
+                    command.unregister(commandMap);
+                    indexedCommands.remove(entry.getKey(), command);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private Map<Event, List<RegisteredListener>> listenersOf(Plugin plugin) {
+        return listenersByPlugin.computeIfAbsent(plugin, k -> new HashMap<>());
+    }
+
+}
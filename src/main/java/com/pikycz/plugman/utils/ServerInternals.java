@@ -0,0 +1,247 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.command.Command;
+import cn.nukkit.command.SimpleCommandMap;
+import cn.nukkit.event.Event;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.plugin.RegisteredListener;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Accessors for the private server fields and methods PlugMan needs to fully
+ * unload a plugin or swap it for a new instance.
+ *
+ * The fields are looked up once and kept as method handles, so unloading
+ * doesn't pay for reflection on every call. Fields that don't exist on the
+ * running Nukkit build resolve to null and the matching cleanup is skipped.
+ *
+ * @author PikyCZ
+ */
+public class ServerInternals {
+
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final MethodHandle plugins;
+
+    private final MethodHandle lookupNames;
+
+    private final MethodHandle listeners;
+
+    private final MethodHandle commandMap;
+
+    private final MethodHandle knownCommands;
+
+    private final MethodHandle loaderPlugin;
+
+    private final MethodHandle loaderPluginInit;
+
+    private final MethodHandle classLoaders;
+
+    private final MethodHandle parseYamlCommands;
+
+    private final List<String> missing = new ArrayList<>();
+
+    private ServerInternals(Class<?> managerClass, Class<?> commandMapClass, Class<?> loaderClass, Class<?> pluginLoaderClass) {
+        plugins = getter(managerClass, "plugins");
+        lookupNames = getter(managerClass, "lookupNames");
+        listeners = getter(managerClass, "listeners");
+        commandMap = getter(managerClass, "commandMap");
+        knownCommands = getter(commandMapClass, "knownCommands");
+        loaderPlugin = setter(loaderClass, "plugin");
+        loaderPluginInit = setter(loaderClass, "pluginInit");
+        classLoaders = getter(pluginLoaderClass, "classLoaders");
+        parseYamlCommands = method(managerClass, "parseYamlCommands", Plugin.class);
+    }
+
+    /**
+     * Resolves the accessors.
+     *
+     * @param managerClass the class of the plugin manager
+     * @param commandMapClass the class of the command map
+     * @param loaderClass the class of the plugin classloaders
+     * @param pluginLoaderClass the class of the plugin loader
+     * @return the accessors
+     */
+    public static ServerInternals resolve(Class<?> managerClass, Class<?> commandMapClass, Class<?> loaderClass, Class<?> pluginLoaderClass) {
+        return new ServerInternals(managerClass, commandMapClass, loaderClass, pluginLoaderClass);
+    }
+
+    /**
+     * @return the fields that could not be found, as Class.field
+     */
+    public List<String> getMissing() {
+        return Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * @return the plugin manager's plugin registry, a Map by name or a List,
+     * or null if unavailable
+     */
+    public Object getPlugins(Object manager) {
+        return get(plugins, manager);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Plugin> getLookupNames(Object manager) {
+        return (Map<String, Plugin>) get(lookupNames, manager);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<Event, SortedSet<RegisteredListener>> getListeners(Object manager) {
+        return (Map<Event, SortedSet<RegisteredListener>>) get(listeners, manager);
+    }
+
+    public SimpleCommandMap getCommandMap(Object manager) {
+        return (SimpleCommandMap) get(commandMap, manager);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Command> getKnownCommands(Object commandMap) {
+        return (Map<String, Command>) get(knownCommands, commandMap);
+    }
+
+    /**
+     * @return the plugin loader's classloaders by plugin name, or null if
+     * unavailable
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getClassLoaders(Object pluginLoader) {
+        return (Map<String, Object>) get(classLoaders, pluginLoader);
+    }
+
+    /**
+     * @return whether {@link #registerCommands} is available
+     */
+    public boolean canRegisterCommands() {
+        return parseYamlCommands != null;
+    }
+
+    /**
+     * Registers the commands declared in a plugin's descriptor, the way the
+     * plugin manager does when it loads a plugin.
+     *
+     * @param manager the plugin manager
+     * @param plugin the plugin
+     * @param commandMap the command map to register with
+     */
+    @SuppressWarnings("unchecked")
+    public void registerCommands(Object manager, Plugin plugin, SimpleCommandMap commandMap) {
+        if (parseYamlCommands == null) {
+            return;
+        }
+        List<? extends Command> commands;
+        try {
+            commands = (List<? extends Command>) (Object) parseYamlCommands.invokeExact(manager, plugin);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        if (commands != null && !commands.isEmpty()) {
+            commandMap.registerAll(plugin.getDescription().getName(), commands);
+        }
+    }
+
+    /**
+     * Drops the references a plugin classloader keeps to its plugin.
+     *
+     * @param loader the classloader
+     */
+    public void clearLoaderPlugin(ClassLoader loader) {
+        set(loaderPlugin, loader, null);
+        set(loaderPluginInit, loader, null);
+    }
+
+    private static Object get(MethodHandle handle, Object owner) {
+        if (handle == null || owner == null) {
+            return null;
+        }
+        try {
+            return (Object) handle.invokeExact(owner);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static void set(MethodHandle handle, Object owner, Object value) {
+        if (handle == null || owner == null) {
+            return;
+        }
+        try {
+            handle.invokeExact(owner, value);
+        } catch (ClassCastException e) {
+            // A loader of another type than the one resolved against.
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private MethodHandle getter(Class<?> owner, String name) {
+        Field field = find(owner, name);
+        if (field == null) {
+            return null;
+        }
+        try {
+            return MethodHandles.lookup().unreflectGetter(field).asType(GETTER);
+        } catch (IllegalAccessException e) {
+            missing.add(owner.getSimpleName() + "." + name);
+            return null;
+        }
+    }
+
+    private MethodHandle setter(Class<?> owner, String name) {
+        Field field = find(owner, name);
+        if (field == null) {
+            return null;
+        }
+        try {
+            return MethodHandles.lookup().unreflectSetter(field).asType(SETTER);
+        } catch (IllegalAccessException e) {
+            // Final fields can't be cleared.
+            missing.add(owner.getSimpleName() + "." + name);
+            return null;
+        }
+    }
+
+    private MethodHandle method(Class<?> owner, String name, Class<?>... parameters) {
+        for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+            try {
+                Method method = c.getDeclaredMethod(name, parameters);
+                method.setAccessible(true);
+                return MethodHandles.lookup().unreflect(method).asType(MethodType.methodType(Object.class, Object.class, Plugin.class));
+            } catch (NoSuchMethodException e) {
+                // Try the superclass.
+            } catch (IllegalAccessException | RuntimeException e) {
+                break;
+            }
+        }
+        missing.add(owner.getSimpleName() + "." + name + "()");
+        return null;
+    }
+
+    private Field find(Class<?> owner, String name) {
+        for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // Try the superclass.
+            } catch (RuntimeException e) {
+                break;
+            }
+        }
+        missing.add(owner.getSimpleName() + "." + name);
+        return null;
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.utils.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which plugins an admin enabled or disabled, and how often
+ * PlugMan loaded each plugin, across restarts.
+ *
+ * Every change is appended to a small binary log, so recording one costs a
+ * single write. Replaying the log keeps the last record per plugin; once the
+ * log holds much more than that it is rewritten with one record per plugin,
+ * so reading it at startup stays proportional to the number of plugins.
+ *
+ * @author PikyCZ
+ */
+public class StateStore {
+
+    private static final int MAGIC = 0x504d5354; // "PMST"
+
+    private static final int VERSION = 1;
+
+    private static final byte ENABLED = 1;
+
+    private static final byte DISABLED = 2;
+
+    private static final byte GENERATION = 3;
+
+    // Compact once the log has this many records more than live entries.
+    private static final int COMPACT_SLACK = 256;
+
+    private final File file;
+
+    private final Logger logger;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private DataOutputStream out;
+
+    private int records;
+
+    // The log may end in a torn record, only a rewrite may touch it.
+    private boolean dirty;
+
+    private static class Entry {
+
+        private final String name;
+
+        private Boolean enabled;
+
+        private int generation;
+
+        private Entry(String name) {
+            this.name = name;
+        }
+
+    }
+
+    /**
+     * @param file the log file
+     * @param logger where to report write errors to
+     */
+    public StateStore(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Replays the log. A missing or foreign file is treated as empty; a
+     * record cut short by a crash ends the replay and is dropped on the next
+     * compaction.
+     */
+    public synchronized void load() {
+        entries.clear();
+        records = 0;
+
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    replay(in);
+                }
+            } catch (IOException e) {
+                logger.warning("Could not read " + file.getName() + ", starting over: " + e.getMessage());
+            }
+        }
+
+        // Always rewritten on startup, which also drops a torn last record.
+        compact();
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            try {
+                Entry entry = entry(in.readUTF());
+                switch (type) {
+                    case ENABLED:
+                        entry.enabled = true;
+                        break;
+                    case DISABLED:
+                        entry.enabled = false;
+                        break;
+                    case GENERATION:
+                        entry.generation = in.readInt();
+                        break;
+                    default:
+                        return;
+                }
+                records++;
+            } catch (EOFException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records that a plugin was enabled or disabled. Does nothing if that
+     * was already the recorded state.
+     *
+     * @param name the plugin name
+     * @param enabled whether the plugin is enabled now
+     */
+    public synchronized void setEnabled(String name, boolean enabled) {
+        Entry entry = entry(name);
+        if (entry.enabled != null && entry.enabled == enabled) {
+            return;
+        }
+        entry.enabled = enabled;
+        append(enabled ? ENABLED : DISABLED, entry.name, 0);
+    }
+
+    /**
+     * Counts another load of a plugin through PlugMan.
+     *
+     * @param name the plugin name
+     * @return the new generation, 1 for the first load
+     */
+    public synchronized int nextGeneration(String name) {
+        Entry entry = entry(name);
+        entry.generation++;
+        append(GENERATION, entry.name, entry.generation);
+        return entry.generation;
+    }
+
+    /**
+     * @param name the plugin name
+     * @return how often PlugMan loaded the plugin, 0 if never
+     */
+    public synchronized int getGeneration(String name) {
+        Entry entry = entries.get(name.toLowerCase());
+        return entry != null ? entry.generation : 0;
+    }
+
+    /**
+     * @param name the plugin name
+     * @return whether the plugin was last disabled by an admin
+     */
+    public synchronized boolean isDisabled(String name) {
+        Entry entry = entries.get(name.toLowerCase());
+        return entry != null && Boolean.FALSE.equals(entry.enabled);
+    }
+
+    /**
+     * @return the names of the plugins that were last disabled
+     */
+    public synchronized List<String> getDisabled() {
+        List<String> disabled = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (Boolean.FALSE.equals(entry.enabled)) {
+                disabled.add(entry.name);
+            }
+        }
+        return disabled;
+    }
+
+    /**
+     * Closes the log.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Every record was flushed already.
+            }
+            out = null;
+        }
+    }
+
+    private Entry entry(String name) {
+        return entries.computeIfAbsent(name.toLowerCase(), key -> new Entry(name));
+    }
+
+    private void append(byte type, String name, int generation) {
+        if (dirty || records > entries.size() * 2 + COMPACT_SLACK) {
+            // The change is already in the entries, the rewrite includes it.
+            compact();
+            return;
+        }
+        try {
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            }
+            out.writeByte(type);
+            out.writeUTF(name);
+            if (type == GENERATION) {
+                out.writeInt(generation);
+            }
+            out.flush();
+            records++;
+        } catch (IOException e) {
+            logger.warning("Could not write " + file.getName() + ": " + e.getMessage());
+            close();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Rewrites the log with one record per live entry. If that fails the log
+     * is left alone and every later change retries the rewrite instead of
+     * appending after what may be half a record.
+     */
+    private void compact() {
+        close();
+
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        int written = 0;
+        try (DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            tmpOut.writeInt(MAGIC);
+            tmpOut.writeInt(VERSION);
+            for (Entry entry : entries.values()) {
+                if (entry.enabled != null) {
+                    tmpOut.writeByte(entry.enabled ? ENABLED : DISABLED);
+                    tmpOut.writeUTF(entry.name);
+                    written++;
+                }
+                if (entry.generation > 0) {
+                    tmpOut.writeByte(GENERATION);
+                    tmpOut.writeUTF(entry.name);
+                    tmpOut.writeInt(entry.generation);
+                    written++;
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Could not write " + file.getName() + ": " + e.getMessage());
+            tmp.delete();
+            dirty = true;
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                logger.warning("Could not replace " + file.getName());
+                dirty = true;
+                return;
+            }
+        }
+        records = written;
+        dirty = false;
+    }
+
+}
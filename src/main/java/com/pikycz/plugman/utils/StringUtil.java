@@ -12,16 +12,24 @@ public class StringUtil {
      *
      * @param args the array
      * @param start the index to start at
-     * @return the array as a String
+     * @return the array as a String, empty if there is nothing from start on
      */
     public static String consolidateStrings(String[] args, int start) {
-        String ret = args[start];
-        if (args.length > (start + 1)) {
-            for (int i = (start + 1); i < args.length; i++) {
-                ret = ret + " " + args[i];
-            }
+        if (start >= args.length) {
+            return "";
         }
-        return ret;
+        if (args.length == start + 1) {
+            return args[start];
+        }
+        int length = args.length - start - 1;
+        for (int i = start; i < args.length; i++) {
+            length += args[i].length();
+        }
+        StringBuilder ret = new StringBuilder(Math.max(0, length)).append(args[start]);
+        for (int i = start + 1; i < args.length; i++) {
+            ret.append(' ').append(args[i]);
+        }
+        return ret.toString();
     }
 
 }
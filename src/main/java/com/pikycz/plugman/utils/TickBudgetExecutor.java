@@ -0,0 +1,338 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.Server;
+import cn.nukkit.command.CommandSender;
+import cn.nukkit.plugin.Plugin;
+import cn.nukkit.scheduler.TaskHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs bulk operations on the main thread a few work items per tick, within
+ * a time budget, so enabling, disabling or reloading many plugins doesn't
+ * freeze the server.
+ *
+ * The budget shrinks by however late the current tick already is, so a
+ * lagging server gets less work per tick; at least one item runs every tick
+ * so a job always makes progress. Jobs run one after the other, the items of
+ * a job by priority, lowest first. The repeating task only exists while
+ * there is work. Jobs whose items can't be stopped halfway, like swapping
+ * unloaded plugins for their new instances, are submitted as not
+ * cancellable.
+ *
+ * Must only be used from the main thread.
+ *
+ * @author PikyCZ
+ */
+public class TickBudgetExecutor {
+
+    private static final long TICK_NANOS = 50000000L;
+
+    private static final long PROGRESS_INTERVAL_NANOS = 2000000000L;
+
+    private final Plugin owner;
+
+    private final String prefix;
+
+    private final long budgetNanos;
+
+    private final ArrayDeque<Job> jobs = new ArrayDeque<>();
+
+    private TaskHandler task;
+
+    private long lastTick;
+
+    private int nextId = 1;
+
+    /**
+     * A step of a job.
+     */
+    public static class Item {
+
+        private final String label;
+
+        private final int priority;
+
+        private final Runnable task;
+
+        private long sequence;
+
+        /**
+         * @param label what the item does, for progress and errors
+         * @param priority lower runs first
+         * @param task the work
+         */
+        public Item(String label, int priority, Runnable task) {
+            this.label = label;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+    }
+
+    /**
+     * A bulk operation split into items.
+     */
+    public class Job {
+
+        private final int id;
+
+        private final String name;
+
+        private final CommandSender sender;
+
+        private final boolean cancellable;
+
+        private final PriorityQueue<Item> items = new PriorityQueue<>(Comparator.<Item>comparingInt(i -> i.priority).thenComparingLong(i -> i.sequence));
+
+        private final List<String> failures = new ArrayList<>();
+
+        private final CompletableFuture<Job> future = new CompletableFuture<>();
+
+        private final int total;
+
+        private int done;
+
+        private boolean cancelled;
+
+        private long lastProgress = System.nanoTime();
+
+        private Job(int id, String name, CommandSender sender, List<Item> items, boolean cancellable) {
+            this.id = id;
+            this.name = name;
+            this.sender = sender;
+            this.cancellable = cancellable;
+            long sequence = 0;
+            for (Item item : items) {
+                item.sequence = sequence++;
+                this.items.add(item);
+            }
+            this.total = items.size();
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getDone() {
+            return done;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public CommandSender getSender() {
+            return sender;
+        }
+
+        public boolean isCancellable() {
+            return cancellable;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return the items that threw, as "label: message"
+         */
+        public List<String> getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return a future completed once the job finished or was cancelled
+         */
+        public CompletableFuture<Job> getFuture() {
+            return future;
+        }
+
+    }
+
+    /**
+     * @param owner the plugin running the repeating task
+     * @param prefix the prefix for messages sent to command senders
+     * @param budgetMillis the milliseconds of work per tick
+     */
+    public TickBudgetExecutor(Plugin owner, String prefix, long budgetMillis) {
+        this.owner = owner;
+        this.prefix = prefix;
+        this.budgetNanos = Math.max(1, budgetMillis) * 1000000L;
+    }
+
+    /**
+     * Queues a job. It starts on the next tick, or once the jobs before it
+     * are done.
+     *
+     * @param name the job's name, e.g. "Disabling all plugins"
+     * @param sender who to report progress to
+     * @param items the work items
+     * @return the job
+     */
+    public Job submit(String name, CommandSender sender, List<Item> items) {
+        return submit(name, sender, items, true);
+    }
+
+    /**
+     * Queues a job. It starts on the next tick, or once the jobs before it
+     * are done.
+     *
+     * @param name the job's name, e.g. "Disabling all plugins"
+     * @param sender who to report progress to
+     * @param items the work items
+     * @param cancellable whether the job may be stopped before all its items
+     * ran
+     * @return the job
+     */
+    public Job submit(String name, CommandSender sender, List<Item> items, boolean cancellable) {
+        Job job = new Job(nextId++, name, sender, items, cancellable);
+        jobs.add(job);
+        if (task == null) {
+            lastTick = System.nanoTime();
+            task = Server.getInstance().getScheduler().scheduleRepeatingTask(owner, this::tick, 1);
+        }
+        return job;
+    }
+
+    /**
+     * @return the running job followed by the queued ones
+     */
+    public List<Job> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    /**
+     * @param id the job's id
+     * @return the running or queued job with that id, or null
+     */
+    public Job getJob(int id) {
+        for (Job job : jobs) {
+            if (job.id == id) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Cancels a job. Items that already ran are not undone.
+     *
+     * @param job the job
+     * @return whether it was cancelled, false if it is not cancellable or
+     * already done
+     */
+    public boolean cancel(Job job) {
+        if (!job.cancellable || !jobs.remove(job)) {
+            return false;
+        }
+        finish(job, true);
+        if (jobs.isEmpty()) {
+            stopTask();
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the cancellable jobs someone submitted.
+     *
+     * @param sender who submitted them
+     * @return the number of jobs cancelled
+     */
+    public int cancel(CommandSender sender) {
+        int cancelled = 0;
+        for (Job job : getJobs()) {
+            if (job.sender == sender && cancel(job)) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Cancels every job, including the ones that are not cancellable, for
+     * when the server shuts down. Items that already ran are not undone.
+     *
+     * @return the number of jobs cancelled
+     */
+    public int cancelAll() {
+        int cancelled = jobs.size();
+        while (!jobs.isEmpty()) {
+            finish(jobs.poll(), true);
+        }
+        stopTask();
+        return cancelled;
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        // Whatever the tick already overran by comes out of the budget.
+        long late = Math.max(0, now - lastTick - TICK_NANOS);
+        long budget = Math.max(0, budgetNanos - late);
+        lastTick = now;
+
+        long start = System.nanoTime();
+        boolean first = true;
+        while (!jobs.isEmpty() && (first || System.nanoTime() - start < budget)) {
+            Job job = jobs.peek();
+            Item item = job.items.poll();
+            if (item == null) {
+                finish(jobs.poll(), false);
+                continue;
+            }
+
+            try {
+                item.task.run();
+            } catch (Throwable t) {
+                job.failures.add(item.label + ": " + t);
+            }
+            job.done++;
+            first = false;
+
+            if (job.items.isEmpty()) {
+                finish(jobs.poll(), false);
+            } else if (System.nanoTime() - job.lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                job.lastProgress = System.nanoTime();
+                job.sender.sendMessage(prefix + " §7" + job.name + ": " + job.done + "/" + job.total + "...");
+            }
+        }
+
+        if (jobs.isEmpty()) {
+            stopTask();
+        }
+    }
+
+    private void finish(Job job, boolean cancelled) {
+        job.cancelled = cancelled;
+        job.items.clear();
+        for (String failure : job.failures) {
+            job.sender.sendMessage(prefix + " §c" + failure);
+        }
+        if (cancelled) {
+            job.sender.sendMessage(prefix + " §c" + job.name + " cancelled after " + job.done + "/" + job.total + ".");
+        } else {
+            job.sender.sendMessage(prefix + " §9" + job.name + " done (" + job.done + "/" + job.total + ").");
+        }
+        job.future.complete(job);
+    }
+
+    private void stopTask() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.pikycz.plugman.utils;
+
+import cn.nukkit.event.Event;
+import cn.nukkit.plugin.RegisteredListener;
+import cn.nukkit.utils.EventException;
+
+/**
+ * Registered listener that times every call of the listener it wraps.
+ *
+ * @author PikyCZ
+ */
+public class TimedRegisteredListener extends RegisteredListener {
+
+    private final RegisteredListener delegate;
+
+    private final ListenerProfiler profiler;
+
+    private final boolean trackAllocations;
+
+    private Class<? extends Event> lastEvent;
+
+    private ListenerProfiler.Stats lastStats;
+
+    /**
+     * @param delegate the listener to time
+     * @param profiler where to record to
+     * @param trackAllocations whether to also record the bytes allocated per
+     * call, which costs considerably more than the timing alone
+     */
+    public TimedRegisteredListener(RegisteredListener delegate, ListenerProfiler profiler, boolean trackAllocations) {
+        super(delegate.getListener(), (listener, event) -> delegate.callEvent(event), delegate.getPriority(), delegate.getPlugin(), delegate.isIgnoringCancelled(), null);
+        this.delegate = delegate;
+        this.profiler = profiler;
+        this.trackAllocations = trackAllocations;
+    }
+
+    /**
+     * @return the wrapped listener
+     */
+    public RegisteredListener getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void callEvent(Event event) throws EventException {
+        long allocated = trackAllocations ? LifecycleTimings.allocatedBytes() : 0;
+        long start = System.nanoTime();
+        try {
+            delegate.callEvent(event);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            stats(event.getClass()).record(nanos, trackAllocations ? LifecycleTimings.allocatedBytes() - allocated : 0);
+        }
+    }
+
+    private ListenerProfiler.Stats stats(Class<? extends Event> event) {
+        // Every handler list belongs to one event class, so this almost always hits.
+        if (event != lastEvent) {
+            lastStats = profiler.stats(delegate, event);
+            lastEvent = event;
+        }
+        return lastStats;
+    }
+
+}